@@ -0,0 +1,34 @@
+package greenflagproject.selenium.benchmark;
+
+import greenflagproject.selenium.apps.KanpoWebOperationApp;
+import greenflagproject.selenium.common.HttpFileDownloader;
+import greenflagproject.selenium.common.WebSiteControlDriver;
+
+import java.io.FileFilter;
+
+/**
+ * ブラウザを使わない処理だけを計測するためのKanpoWebOperationApp。
+ * ブラウザを起動しないので、WebDriverのコマンドは使えない。
+ * downloadFile()は毎回ファイル全体を転送するように、DownloadCacheを使わない。
+ */
+public class BenchmarkKanpoWebOperationApp extends KanpoWebOperationApp {
+
+    public BenchmarkKanpoWebOperationApp(){
+        super(new WebSiteControlDriver(null));
+    }
+
+    @Override
+    protected HttpFileDownloader createFileDownloader(){
+        HttpFileDownloader fileDownloader = super.createFileDownloader();
+        fileDownloader.setCache(null);
+        return fileDownloader;
+    }
+
+    public FileFilter getDownloadFilter(){
+        return downloadFilter;
+    }
+
+    public static String pdfUrl(String currentUrl){
+        return toPdfUrl(currentUrl);
+    }
+}
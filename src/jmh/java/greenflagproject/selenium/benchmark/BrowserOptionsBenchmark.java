@@ -0,0 +1,31 @@
+package greenflagproject.selenium.benchmark;
+
+import greenflagproject.selenium.common.WuChromeOptions;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WuChromeOptionsの作成(checkExistsによるファイルの確認、ダウンロードフォルダの作成を含む)と、
+ * PDFのURLの書き換えの計測。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrowserOptionsBenchmark {
+
+    public String pageUrl = "https://www.kanpo.go.jp/20250618/20250618h01491/20250618h014910001f.html";
+
+    @Benchmark
+    public WuChromeOptions chromeOptions() {
+        return new WuChromeOptions(true);
+    }
+
+    @Benchmark
+    public String pdfUrl() {
+        return BenchmarkKanpoWebOperationApp.pdfUrl(pageUrl);
+    }
+}
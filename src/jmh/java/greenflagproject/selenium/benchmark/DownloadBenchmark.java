@@ -0,0 +1,70 @@
+package greenflagproject.selenium.benchmark;
+
+import greenflagproject.selenium.common.DownloadCache;
+import greenflagproject.selenium.common.HttpFileDownloader;
+import org.openqa.selenium.io.FileHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ローカルHTTPサーバーからのダウンロードの計測。
+ * KanpoWebOperationApp.downloadFile(キャッシュなし)、キャッシュなしのHttpFileDownloader、条件付きGETでキャッシュから取り出す場合を比較する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int fileSize;
+
+    private FixtureHttpServer server;
+    private BenchmarkKanpoWebOperationApp app;
+    private HttpFileDownloader downloader;
+    private HttpFileDownloader cachedDownloader;
+    private Path workFolder;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new FixtureHttpServer();
+        url = server.getFileUrl(fileSize);
+        app = new BenchmarkKanpoWebOperationApp();
+        workFolder = Files.createTempDirectory("download-benchmark");
+        downloader = new HttpFileDownloader(1, 1);
+        downloader.setCache(null);
+        cachedDownloader = new HttpFileDownloader(1, 1);
+        cachedDownloader.setCache(new DownloadCache(workFolder.resolve("cache"), Long.MAX_VALUE));
+        cachedDownloader.download(url, workFolder.resolve("cached.pdf"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        downloader.close();
+        cachedDownloader.close();
+        server.close();
+        FileHandler.delete(workFolder.toFile());
+    }
+
+    @Benchmark
+    public void kanpoDownloadFile() throws IOException {
+        app.downloadFile(url, "kanpo.pdf");
+    }
+
+    @Benchmark
+    public HttpFileDownloader.DownloadResult downloaderWithoutCache() throws IOException {
+        return downloader.download(url, workFolder.resolve("nocache.pdf"));
+    }
+
+    @Benchmark
+    public HttpFileDownloader.DownloadResult downloaderCacheHit() throws IOException {
+        return cachedDownloader.download(url, workFolder.resolve("cached.pdf"));
+    }
+}
@@ -0,0 +1,81 @@
+package greenflagproject.selenium.benchmark;
+
+import greenflagproject.selenium.common.DownloadTracker;
+import org.openqa.selenium.io.FileHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ダウンロードフォルダの確認の計測。
+ * ファイルが数千件あるフォルダでのdownloadFilterによる走査と、DownloadTrackerで1件ずつ完了を受け取る場合を比較する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadFolderBenchmark {
+
+    @Param({"1000", "5000"})
+    public int fileCount;
+
+    private Path folder;
+    private FileFilter downloadFilter;
+    private BenchmarkDownloadTracker tracker;
+    private File downloadedFile;
+    private int sequence = 0;
+
+    /**
+     * onFileStable()を呼び出すためのDownloadTracker
+     */
+    static class BenchmarkDownloadTracker extends DownloadTracker {
+        BenchmarkDownloadTracker(Path downloadFolder, FileFilter fileFilter){
+            super(downloadFolder, fileFilter);
+        }
+        void complete(File file){
+            onFileStable(file);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("download-folder-benchmark");
+        for(int i=0; i<fileCount; i++){
+            String name = switch (i%10){
+                case 0 -> "."+i+".pdf";             //隠しファイル
+                case 1 -> i+".pdf.crdownload";      //ダウンロード途中
+                default -> i+".pdf";
+            };
+            Files.createFile(folder.resolve(name));
+        }
+        downloadFilter = new BenchmarkKanpoWebOperationApp().getDownloadFilter();
+        tracker = new BenchmarkDownloadTracker(folder, downloadFilter);
+        downloadedFile = folder.resolve("2.pdf").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tracker.close();
+        FileHandler.delete(folder.toFile());
+    }
+
+    @Benchmark
+    public File[] scanWithDownloadFilter() {
+        return folder.toFile().listFiles(downloadFilter);
+    }
+
+    @Benchmark
+    public File trackerExpectAndComplete() {
+        tracker.clear();
+        var future = tracker.expect();
+        tracker.complete(new File(downloadedFile.getParentFile(), (sequence++%fileCount)+".pdf"));
+        return future.join();
+    }
+}
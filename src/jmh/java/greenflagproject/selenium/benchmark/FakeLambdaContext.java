@@ -0,0 +1,96 @@
+package greenflagproject.selenium.benchmark;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Lambdaのinvocationを模したContext。
+ * getRemainingTimeInMillis()は作成した時点からタイムアウトまでの残り時間を返す。
+ */
+public class FakeLambdaContext implements Context {
+    private final String requestId = UUID.randomUUID().toString();
+    private final String functionName;
+    private final int memoryLimitInMB;
+    private final long deadlineNanos;
+
+    /**
+     * @param functionName
+     * @param timeoutMillis Lambdaのタイムアウト(ms)
+     * @param memoryLimitInMB
+     */
+    public FakeLambdaContext(String functionName, long timeoutMillis, int memoryLimitInMB){
+        this.functionName = functionName;
+        this.memoryLimitInMB = memoryLimitInMB;
+        this.deadlineNanos = System.nanoTime()+timeoutMillis*1_000_000;
+    }
+
+    @Override
+    public String getAwsRequestId() {
+        return requestId;
+    }
+
+    @Override
+    public String getLogGroupName() {
+        return "/aws/lambda/"+functionName;
+    }
+
+    @Override
+    public String getLogStreamName() {
+        return "local";
+    }
+
+    @Override
+    public String getFunctionName() {
+        return functionName;
+    }
+
+    @Override
+    public String getFunctionVersion() {
+        return "$LATEST";
+    }
+
+    @Override
+    public String getInvokedFunctionArn() {
+        return "arn:aws:lambda:local:000000000000:function:"+functionName;
+    }
+
+    @Override
+    public CognitoIdentity getIdentity() {
+        return null;
+    }
+
+    @Override
+    public ClientContext getClientContext() {
+        return null;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return (int) Math.max(0, (deadlineNanos-System.nanoTime())/1_000_000);
+    }
+
+    @Override
+    public int getMemoryLimitInMB() {
+        return memoryLimitInMB;
+    }
+
+    @Override
+    public LambdaLogger getLogger() {
+        return new LambdaLogger() {
+            @Override
+            public void log(String message) {
+                System.out.print(message);
+            }
+
+            @Override
+            public void log(byte[] message) {
+                log(new String(message, StandardCharsets.UTF_8));
+            }
+        };
+    }
+}
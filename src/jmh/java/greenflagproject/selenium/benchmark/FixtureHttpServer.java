@@ -0,0 +1,61 @@
+package greenflagproject.selenium.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+/**
+ * ベンチマーク用のローカルHTTPサーバー。
+ * /file/{サイズ}で指定したサイズのファイルを返す。ETagを返し、If-None-Matchが一致する場合は304を返す。
+ */
+public class FixtureHttpServer implements AutoCloseable {
+    private final HttpServer server;
+    private final Map<Integer, byte[]> files = new ConcurrentHashMap<>();
+
+    public FixtureHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/file/", this::handleFile);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+    }
+
+    public String getFileUrl(int size){
+        return String.format("http://127.0.0.1:%d/file/%d", server.getAddress().getPort(), size);
+    }
+
+    private void handleFile(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            int size = Integer.parseInt(exchange.getRequestURI().getPath().substring("/file/".length()));
+            byte[] body = files.computeIfAbsent(size, FixtureHttpServer::createBody);
+            String etag = "\"" + size + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))){
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()){
+                out.write(body);
+            }
+        }
+    }
+
+    private static byte[] createBody(int size){
+        byte[] body = new byte[size];
+        new Random(size).nextBytes(body);
+        return body;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
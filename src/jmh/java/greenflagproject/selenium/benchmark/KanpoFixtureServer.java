@@ -0,0 +1,189 @@
+package greenflagproject.selenium.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import greenflagproject.selenium.common.CommonUtility;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 官報のWebサイトの疑似サイト。
+ * トップページにtodayProductsのマークアップを返し、そこからリンクしたPDFを生成して返す。
+ * 件数・サイズ、応答の遅延、帯域の上限、エラーの割合を設定できるので、KanpoWebOperationAppを繰り返し同じ条件で動かせる。
+ * KanpoWebOperationAppのbaseUrl(環境変数KANPO_BASE_URL)にgetBaseUrl()を指定して使う。
+ */
+public class KanpoFixtureServer implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(KanpoFixtureServer.class);
+
+    public final static String ENV_FIXTURE_PORT="FIXTURE_PORT";
+    public final static int DEFAULT_FIXTURE_PORT=0;
+    public final static String ENV_FIXTURE_PDF_COUNT="FIXTURE_PDF_COUNT";
+    public final static int DEFAULT_FIXTURE_PDF_COUNT=20;
+    public final static String ENV_FIXTURE_PDF_SIZE="FIXTURE_PDF_SIZE";
+    public final static int DEFAULT_FIXTURE_PDF_SIZE=256*1024;
+    public final static String ENV_FIXTURE_LATENCY_MILLIS="FIXTURE_LATENCY_MILLIS";
+    public final static int DEFAULT_FIXTURE_LATENCY_MILLIS=0;
+    public final static String ENV_FIXTURE_BANDWIDTH_KBPS="FIXTURE_BANDWIDTH_KBPS";
+    public final static int DEFAULT_FIXTURE_BANDWIDTH_KBPS=0;
+    public final static String ENV_FIXTURE_ERROR_PERCENT="FIXTURE_ERROR_PERCENT";
+    public final static int DEFAULT_FIXTURE_ERROR_PERCENT=0;
+
+    final static String DATE="20250618";
+    final static String ISSUE=DATE+"h01491";
+    private final static int CHUNK_SIZE=16*1024;
+
+    /**
+     * 疑似サイトの設定
+     * @param port 0の場合は空いているポート
+     * @param pdfCount PDFの件数(todayProductsのliの数)
+     * @param pdfSize PDF1件のサイズ(bytes)
+     * @param latencyMillis 応答を返すまでの遅延(ms)
+     * @param bandwidthKbps 1接続あたりの帯域の上限(KB/s)。0の場合は上限なし
+     * @param errorPercent PDFの応答を503にする割合(%)
+     */
+    public record Settings(int port, int pdfCount, int pdfSize, int latencyMillis, int bandwidthKbps, int errorPercent){
+        public static Settings fromEnv(){
+            return new Settings(
+                    CommonUtility.getIntEnv(ENV_FIXTURE_PORT, DEFAULT_FIXTURE_PORT),
+                    CommonUtility.getIntEnv(ENV_FIXTURE_PDF_COUNT, DEFAULT_FIXTURE_PDF_COUNT),
+                    CommonUtility.getIntEnv(ENV_FIXTURE_PDF_SIZE, DEFAULT_FIXTURE_PDF_SIZE),
+                    CommonUtility.getIntEnv(ENV_FIXTURE_LATENCY_MILLIS, DEFAULT_FIXTURE_LATENCY_MILLIS),
+                    CommonUtility.getIntEnv(ENV_FIXTURE_BANDWIDTH_KBPS, DEFAULT_FIXTURE_BANDWIDTH_KBPS),
+                    CommonUtility.getIntEnv(ENV_FIXTURE_ERROR_PERCENT, DEFAULT_FIXTURE_ERROR_PERCENT));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        KanpoFixtureServer server = new KanpoFixtureServer(Settings.fromEnv());
+        logger.info("Ctrl+Cで終了します。KANPO_BASE_URL={}", server.getBaseUrl());
+    }
+
+    private final Settings settings;
+    private final HttpServer server;
+    private final byte[] pdf;
+    private final LongAdder pdfRequests = new LongAdder();
+    private final LongAdder errorResponses = new LongAdder();
+
+    public KanpoFixtureServer(Settings settings) throws IOException {
+        this.settings = settings;
+        this.pdf = createPdf(settings.pdfSize());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", settings.port()), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        logger.info("疑似官報サイトを起動しました[{}] {}", getBaseUrl(), settings);
+    }
+
+    public String getBaseUrl(){
+        return String.format("http://127.0.0.1:%d/", server.getAddress().getPort());
+    }
+
+    public Settings getSettings(){
+        return settings;
+    }
+
+    public long getPdfRequests(){
+        return pdfRequests.sum();
+    }
+
+    public long getErrorResponses(){
+        return errorResponses.sum();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            sleep(settings.latencyMillis());
+            String path = exchange.getRequestURI().getPath();
+            if("/".equals(path)){
+                send(exchange, 200, "text/html; charset=UTF-8", createTopPage().getBytes(StandardCharsets.UTF_8));
+            }
+            else if(path.endsWith(".pdf")){
+                pdfRequests.increment();
+                if(ThreadLocalRandom.current().nextInt(100)<settings.errorPercent()){
+                    errorResponses.increment();
+                    send(exchange, 503, "text/plain", "Service Unavailable".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                send(exchange, 200, "application/pdf", pdf);
+            }
+            else if(path.endsWith(".html")){
+                send(exchange, 200, "text/html; charset=UTF-8", "<html><body><main>記事</main></body></html>".getBytes(StandardCharsets.UTF_8));
+            }
+            else {
+                send(exchange, 404, "text/plain", "Not Found".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * 帯域の上限がある場合は、CHUNK_SIZE毎に上限に合わせて待ちながら書き込む。
+     */
+    private void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()){
+            if(0>=settings.bandwidthKbps()){
+                out.write(body);
+                return;
+            }
+            long startNanos = System.nanoTime();
+            for(int offset=0; offset<body.length; offset+=CHUNK_SIZE){
+                int length = Math.min(CHUNK_SIZE, body.length-offset);
+                out.write(body, offset, length);
+                long expectedMillis = (offset+length)*1000L/(settings.bandwidthKbps()*1024L);
+                sleep(expectedMillis-(System.nanoTime()-startNanos)/1_000_000);
+            }
+        }
+    }
+
+    /**
+     * KanpoWebOperationApp.search()が読み取るtodayProductsのマークアップ。
+     * liごとに記事へのリンクと、PDFのページ(full)へのリンクを置く。
+     */
+    String createTopPage(){
+        StringBuilder builder = new StringBuilder();
+        builder.append("<!DOCTYPE html><html lang=\"ja\"><head><meta charset=\"UTF-8\"><title>官報(疑似サイト)</title></head><body><main>");
+        builder.append("<div id=\"todayProducts\" class=\"todayBox\"><dl><dt>令和7年6月18日<br>本日の官報</dt><dd><ul>");
+        for(int i=1; i<=settings.pdfCount(); i++){
+            String article = String.format("%s/%s/%s%04d", DATE, ISSUE, ISSUE, i);
+            String page = String.format("%s/%s/%sfull%04d%04d", DATE, ISSUE, ISSUE, i, i);
+            builder.append(String.format("<li><a href=\"/%sf.html\">記事%d</a><a href=\"/%sf.html\">[PDF]%d頁</a></li>", article, i, page, i));
+        }
+        builder.append("</ul></dd></dl></div></main></body></html>");
+        return builder.toString();
+    }
+
+    private static byte[] createPdf(int size){
+        byte[] body = new byte[size];
+        new Random(size).nextBytes(body);
+        byte[] header = "%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(header, 0, body, 0, Math.min(header.length, size));
+        return body;
+    }
+
+    private static void sleep(long millis){
+        if(0>=millis){
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,151 @@
+package greenflagproject.selenium.benchmark;
+
+import greenflagproject.selenium.apps.KanpoWebOperationApp;
+import greenflagproject.selenium.common.AutoWebOperator;
+import greenflagproject.selenium.common.CommonUtility;
+import greenflagproject.selenium.common.WebSiteControlDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 疑似官報サイト(KanpoFixtureServer)に対してKanpoWebOperationAppをN回実行し、スループットと時間の内訳を出力する。
+ * ブラウザ(Chromium)とドライバーが必要なので、JMHではなくmainで実行する。
+ * <pre>
+ * HARNESS_EXECUTIONS=10 FIXTURE_PDF_COUNT=50 mvn -P benchmark compile exec:java -Dexec.mainClass=greenflagproject.selenium.benchmark.KanpoThroughputHarness
+ * </pre>
+ */
+public class KanpoThroughputHarness {
+    private final static Logger logger = LoggerFactory.getLogger(KanpoThroughputHarness.class);
+
+    /**
+     * 実行回数。
+     * デフォルトは5回。
+     */
+    public final static String ENV_HARNESS_EXECUTIONS="HARNESS_EXECUTIONS";
+    public final static int DEFAULT_HARNESS_EXECUTIONS=5;
+
+    /**
+     * trueの場合、ブラウザを1回だけ起動し、実行の間はreset()で初期化して使いまわす(warm modeと同じ)。
+     * デフォルトはfalse(実行毎にブラウザを起動・終了する)。
+     */
+    public final static String ENV_HARNESS_REUSE_BROWSER="HARNESS_REUSE_BROWSER";
+    public final static boolean DEFAULT_HARNESS_REUSE_BROWSER=false;
+
+    /**
+     * 1回の実行の結果
+     * @param startupMillis ブラウザの起動(使いまわす場合はreset())にかかった時間
+     * @param executeMillis exec()(ページの表示、抽出、PDFのダウンロード)にかかった時間
+     * @param quitMillis ブラウザの終了にかかった時間
+     * @param files ダウンロードしたファイル数
+     * @param bytes ダウンロードしたバイト数
+     * @param success
+     */
+    public record Execution(long startupMillis, long executeMillis, long quitMillis, int files, long bytes, boolean success){
+        long totalMillis(){
+            return startupMillis+executeMillis+quitMillis;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int executions = CommonUtility.getIntEnv(ENV_HARNESS_EXECUTIONS, DEFAULT_HARNESS_EXECUTIONS);
+        boolean reuseBrowser = CommonUtility.getBooleanEnv(ENV_HARNESS_REUSE_BROWSER, DEFAULT_HARNESS_REUSE_BROWSER);
+        boolean headlessMode = CommonUtility.getBooleanEnv(AutoWebOperator.ENV_HEADLESS_MODE, AutoWebOperator.DEFAULT_HEADLESS_MODE);
+        try (KanpoFixtureServer server = new KanpoFixtureServer(KanpoFixtureServer.Settings.fromEnv())) {
+            List<Execution> results = run(server, executions, reuseBrowser, headlessMode);
+            printReport(server, results, reuseBrowser);
+        }
+    }
+
+    public static List<Execution> run(KanpoFixtureServer server, int executions, boolean reuseBrowser, boolean headlessMode){
+        List<Execution> results = new ArrayList<>();
+        WebSiteControlDriver sharedDriver = null;
+        try {
+            for(int i=0; i<executions; i++){
+                long startNanos = System.nanoTime();
+                WebSiteControlDriver driver;
+                if(reuseBrowser && null!=sharedDriver){
+                    sharedDriver.reset();
+                    driver = sharedDriver;
+                }
+                else {
+                    driver = WebSiteControlDriver.createDriver(headlessMode);
+                    driver.setReusable(reuseBrowser);
+                    driver.clearDownloadFolder();
+                    if(reuseBrowser){
+                        sharedDriver = driver;
+                    }
+                }
+                long startupMillis = elapsedMillis(startNanos);
+
+                KanpoWebOperationApp app = new KanpoWebOperationApp(driver);
+                app.setBaseUrl(server.getBaseUrl());
+                startNanos = System.nanoTime();
+                boolean success = true;
+                try {
+                    app.exec();
+                }
+                catch (RuntimeException e){
+                    logger.warn("{}回目の実行に失敗しました。{}", i+1, e.getMessage());
+                    success = false;
+                }
+                long executeMillis = elapsedMillis(startNanos);
+
+                File[] files = new File(driver.getDownloadFolderPath()).listFiles(File::isFile);
+                int fileCount = null==files ? 0 : files.length;
+                long bytes = 0;
+                for(File file : null==files ? new File[0] : files){
+                    bytes += file.length();
+                }
+
+                startNanos = System.nanoTime();
+                if(!reuseBrowser){
+                    driver.quit();
+                }
+                long quitMillis = elapsedMillis(startNanos);
+                results.add(new Execution(startupMillis, executeMillis, quitMillis, fileCount, bytes, success));
+                logger.info("{}回目: {}", i+1, results.getLast());
+            }
+        }
+        finally {
+            if(null!=sharedDriver){
+                sharedDriver.quit();
+            }
+        }
+        return results;
+    }
+
+    static void printReport(KanpoFixtureServer server, List<Execution> results, boolean reuseBrowser){
+        long totalMillis = results.stream().mapToLong(Execution::totalMillis).sum();
+        long startupMillis = results.stream().mapToLong(Execution::startupMillis).sum();
+        long executeMillis = results.stream().mapToLong(Execution::executeMillis).sum();
+        long quitMillis = results.stream().mapToLong(Execution::quitMillis).sum();
+        long files = results.stream().mapToLong(Execution::files).sum();
+        long bytes = results.stream().mapToLong(Execution::bytes).sum();
+        long failures = results.stream().filter(execution -> !execution.success()).count();
+        double seconds = Math.max(1, totalMillis)/1000.0;
+
+        StringBuilder builder = new StringBuilder("KanpoWebOperationAppの実行結果\n");
+        builder.append(String.format("設定: %s ブラウザの使いまわし:%s%n", server.getSettings(), reuseBrowser));
+        builder.append(String.format("実行回数:%d 失敗:%d PDFリクエスト:%d エラー応答:%d%n", results.size(), failures, server.getPdfRequests(), server.getErrorResponses()));
+        builder.append(String.format("スループット: %.3f 回/秒  %.2f ファイル/秒  %.2f MB/秒%n", results.size()/seconds, files/seconds, bytes/seconds/1024/1024));
+        builder.append(String.format("時間の内訳(合計 %dms): ブラウザ起動 %dms(%.1f%%)  実行 %dms(%.1f%%)  終了 %dms(%.1f%%)%n", totalMillis,
+                startupMillis, percent(startupMillis, totalMillis), executeMillis, percent(executeMillis, totalMillis), quitMillis, percent(quitMillis, totalMillis)));
+        builder.append(String.format("1回あたり: ブラウザ起動 %dms  実行 %dms  終了 %dms%n",
+                startupMillis/Math.max(1, results.size()), executeMillis/Math.max(1, results.size()), quitMillis/Math.max(1, results.size())));
+        logger.info(builder.toString());
+    }
+
+    private static long elapsedMillis(long startNanos){
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-startNanos);
+    }
+
+    private static double percent(long value, long total){
+        return 0==total ? 0 : value*100.0/total;
+    }
+}
@@ -0,0 +1,180 @@
+package greenflagproject.selenium.benchmark;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import greenflagproject.selenium.common.CommonUtility;
+import org.openqa.selenium.json.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lambdaのライフサイクル(init phaseでhandler Classをロードし、そのあとイベントを順に呼び出す)をプロセス内で再現するハーネス。
+ * コンテナやaws-lambda-rieを使わずに、init時間、最初のinvokeと2回目以降のinvokeの時間、JVMとブラウザのプロセスツリーのRSSを計測する。
+ * warm mode(WARM_BROWSER_MODE)や事前起動(PRELAUNCH_BROWSER)の効果の確認に使う。
+ * <pre>
+ * HARNESS_EVENTS=5 WARM_BROWSER_MODE=true mvn -P benchmark compile exec:java -Dexec.mainClass=greenflagproject.selenium.benchmark.LambdaLifecycleHarness
+ * </pre>
+ * RSSは/procから読むので、Linux以外では-1になる。
+ */
+public class LambdaLifecycleHarness {
+    private final static Logger logger = LoggerFactory.getLogger(LambdaLifecycleHarness.class);
+
+    /**
+     * handler Class。
+     * デフォルトはAwsLambdaRequestHandler。RequestHandler、RequestStreamHandlerのどちらでもよい。
+     */
+    public final static String ENV_LAMBDA_HANDLER="LAMBDA_HANDLER";
+    public final static String DEFAULT_LAMBDA_HANDLER="greenflagproject.selenium.apps.AwsLambdaRequestHandler";
+
+    /**
+     * 呼び出すイベント(JSON)。
+     * デフォルトは{}。
+     */
+    public final static String ENV_HARNESS_EVENT="HARNESS_EVENT";
+    public final static String DEFAULT_HARNESS_EVENT="{}";
+
+    /**
+     * イベントを呼び出す回数。
+     * デフォルトは3回。
+     */
+    public final static String ENV_HARNESS_EVENTS="HARNESS_EVENTS";
+    public final static int DEFAULT_HARNESS_EVENTS=3;
+
+    /**
+     * イベントの間隔(ms)。Lambdaがアイドルの間を模す。
+     * デフォルトは0。
+     */
+    public final static String ENV_HARNESS_EVENT_INTERVAL_MILLIS="HARNESS_EVENT_INTERVAL_MILLIS";
+    public final static int DEFAULT_HARNESS_EVENT_INTERVAL_MILLIS=0;
+
+    /**
+     * Lambdaのタイムアウト(秒)。FakeLambdaContext.getRemainingTimeInMillis()の起点になる。
+     * デフォルトは900秒。
+     */
+    public final static String ENV_LAMBDA_TIMEOUT_SECOND="LAMBDA_TIMEOUT_SECOND";
+    public final static int DEFAULT_LAMBDA_TIMEOUT_SECOND=900;
+
+    public final static String ENV_LAMBDA_MEMORY_MB="LAMBDA_MEMORY_MB";
+    public final static int DEFAULT_LAMBDA_MEMORY_MB=2048;
+
+    /**
+     * 1回のinvokeの結果
+     * @param millis
+     * @param jvmRssKb invoke後のJVMのRSS(KB)
+     * @param browserRssKb invoke後のJVMの子孫プロセス(chromedriver、Chromium)のRSSの合計(KB)
+     * @param result handlerの戻り値
+     */
+    public record Invocation(long millis, long jvmRssKb, long browserRssKb, String result){}
+
+    public static void main(String[] args) throws Exception {
+        String handlerClassName = CommonUtility.getEnv(ENV_LAMBDA_HANDLER, DEFAULT_LAMBDA_HANDLER);
+        String event = CommonUtility.getEnv(ENV_HARNESS_EVENT, DEFAULT_HARNESS_EVENT);
+        int events = CommonUtility.getIntEnv(ENV_HARNESS_EVENTS, DEFAULT_HARNESS_EVENTS);
+        int intervalMillis = CommonUtility.getIntEnv(ENV_HARNESS_EVENT_INTERVAL_MILLIS, DEFAULT_HARNESS_EVENT_INTERVAL_MILLIS);
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(CommonUtility.getIntEnv(ENV_LAMBDA_TIMEOUT_SECOND, DEFAULT_LAMBDA_TIMEOUT_SECOND));
+        int memoryMB = CommonUtility.getIntEnv(ENV_LAMBDA_MEMORY_MB, DEFAULT_LAMBDA_MEMORY_MB);
+
+        //init phase: handler Classのロード(static初期化)とインスタンスの作成
+        long startNanos = System.nanoTime();
+        Class<?> handlerClass = Class.forName(handlerClassName);
+        Object handler = handlerClass.getDeclaredConstructor().newInstance();
+        long initMillis = elapsedMillis(startNanos);
+        long initJvmRssKb = readRssKb(ProcessHandle.current());
+        long initBrowserRssKb = readDescendantsRssKb();
+        logger.info("init: {}ms JVM RSS:{}KB ブラウザ RSS:{}KB", initMillis, initJvmRssKb, initBrowserRssKb);
+
+        List<Invocation> invocations = new ArrayList<>();
+        for(int i=0; i<events; i++){
+            if(0<i && 0<intervalMillis){
+                Thread.sleep(intervalMillis);
+            }
+            FakeLambdaContext context = new FakeLambdaContext(handlerClass.getSimpleName(), timeoutMillis, memoryMB);
+            startNanos = System.nanoTime();
+            String result = invoke(handler, event, context);
+            long millis = elapsedMillis(startNanos);
+            invocations.add(new Invocation(millis, readRssKb(ProcessHandle.current()), readDescendantsRssKb(), result));
+            logger.info("invoke {}: {}", i+1, invocations.getLast());
+        }
+        printReport(handlerClassName, initMillis, initJvmRssKb, initBrowserRssKb, invocations);
+        System.exit(0);     //warm modeのブラウザなどが残っていても終了する(Lambdaのコンテナ終了と同じくshutdown hookが動く)
+    }
+
+    @SuppressWarnings("unchecked")
+    static String invoke(Object handler, String event, Context context) throws IOException {
+        Json json = new Json();
+        try {
+            if(handler instanceof RequestStreamHandler streamHandler){
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                streamHandler.handleRequest(new ByteArrayInputStream(event.getBytes(StandardCharsets.UTF_8)), output, context);
+                return output.toString(StandardCharsets.UTF_8);
+            }
+            Map<String, Object> input = json.toType(event, Json.MAP_TYPE);
+            Object output = ((RequestHandler<Object, Object>) handler).handleRequest(input, context);
+            return output instanceof String s ? s : json.toJson(output);
+        }
+        catch (RuntimeException e){
+            logger.warn("invokeでエラーが発生しました。", e);
+            return "ERROR: "+e;
+        }
+    }
+
+    static void printReport(String handlerClassName, long initMillis, long initJvmRssKb, long initBrowserRssKb, List<Invocation> invocations){
+        StringBuilder builder = new StringBuilder("Lambdaライフサイクルの計測結果\n");
+        builder.append(String.format("handler: %s%n", handlerClassName));
+        builder.append(String.format("init: %dms  JVM RSS:%dKB  ブラウザ RSS:%dKB%n", initMillis, initJvmRssKb, initBrowserRssKb));
+        if(!invocations.isEmpty()){
+            Invocation first = invocations.getFirst();
+            builder.append(String.format("最初のinvoke: %dms  JVM RSS:%dKB  ブラウザ RSS:%dKB%n", first.millis(), first.jvmRssKb(), first.browserRssKb()));
+        }
+        if(1<invocations.size()){
+            List<Long> steady = invocations.subList(1, invocations.size()).stream().map(Invocation::millis).sorted().toList();
+            Invocation last = invocations.getLast();
+            builder.append(String.format("2回目以降のinvoke(%d回): 平均 %dms  p50 %dms  最大 %dms  最後のJVM RSS:%dKB  ブラウザ RSS:%dKB%n", steady.size(),
+                    steady.stream().mapToLong(Long::longValue).sum()/steady.size(), steady.get((steady.size()-1)/2), steady.getLast(), last.jvmRssKb(), last.browserRssKb()));
+        }
+        for(int i=0; i<invocations.size(); i++){
+            builder.append(String.format("  %d: %dms %s%n", i+1, invocations.get(i).millis(), invocations.get(i).result()));
+        }
+        logger.info(builder.toString());
+    }
+
+    /**
+     * /proc/{pid}/statusのVmRSSを読む。
+     * @param process
+     * @return 読めない場合は-1
+     */
+    static long readRssKb(ProcessHandle process){
+        Path status = Path.of("/proc", String.valueOf(process.pid()), "status");
+        try {
+            for(String line : Files.readAllLines(status)){
+                if(line.startsWith("VmRSS:")){
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+            return 0;   //終了処理中のプロセス
+        }
+        catch (IOException | RuntimeException e){
+            return -1;
+        }
+    }
+
+    static long readDescendantsRssKb(){
+        return ProcessHandle.current().descendants().mapToLong(LambdaLifecycleHarness::readRssKb).filter(kb -> 0<=kb).sum();
+    }
+
+    private static long elapsedMillis(long startNanos){
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-startNanos);
+    }
+}
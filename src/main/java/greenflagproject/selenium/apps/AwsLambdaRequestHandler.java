@@ -3,33 +3,134 @@ package greenflagproject.selenium.apps;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import greenflagproject.selenium.common.AutoWebOperator;
+import greenflagproject.selenium.common.BatchRunner;
+import greenflagproject.selenium.common.CommonUtility;
+import greenflagproject.selenium.common.Deadline;
+import greenflagproject.selenium.common.HttpFileDownloader;
+import greenflagproject.selenium.common.OutputSink;
+import greenflagproject.selenium.common.StartupMetrics;
+import greenflagproject.selenium.common.WarmDriverHolder;
+import greenflagproject.selenium.common.WebSiteControlDriver;
+import greenflagproject.selenium.common.WorkspaceManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
-public class AwsLambdaRequestHandler implements RequestHandler<Map<String,String>, String>{
+/**
+ * イベントのjobsに指定したジョブを、同じブラウザで順に実行する。jobsがない場合はKanpoWebOperationAppを1回実行する。
+ * <pre>
+ * {"jobs":[{"operator":"kanpo","parameters":{"sections":["公告"]}}, {"operator":"kanpo","parameters":{"date":"20250618"}}]}
+ * </pre>
+ * 戻り値はバッチ全体の状態(SUCCESS/PARTIAL/FAILED)と、ジョブ毎の結果。
+ */
+public class AwsLambdaRequestHandler implements RequestHandler<Map<String,Object>, Map<String,Object>>{
 
     private final static Logger logger = LoggerFactory.getLogger(AwsLambdaRequestHandler.class);
 
+    public final static String DEFAULT_OPERATOR="kanpo";
+
+    /**
+     * オペレーター名とAutoWebOperatorの作成処理。新しいWebサイトの処理を追加した場合はここに登録する。
+     */
+    protected final static Map<String, Function<WebSiteControlDriver, ? extends AutoWebOperator>> OPERATORS = Map.of(
+            DEFAULT_OPERATOR, KanpoWebOperationApp::new);
+
+    private static boolean initialized;    //static初期化子より前に宣言する(後ろで初期値を代入すると、initialize()で立てたフラグが戻ってしまう)
+
+    static {
+        initialize();
+    }
+
+    /**
+     * Lambdaのinit phaseでの処理。handler Classのstatic初期化で呼び出す。
+     * ブラウザ起動を始めておき、JVMやSeleniumのクラスロードと並行させる。
+     */
+    protected static synchronized void initialize(){
+        if(initialized) {
+            return;
+        }
+        initialized=true;
+        StartupMetrics.recordHandlerLoaded();
+        if(WarmDriverHolder.isPrelaunchMode()) {
+            WarmDriverHolder.prelaunch(getHeadlessMode());
+        }
+    }
+
+    private static boolean getHeadlessMode(){
+        return CommonUtility.getBooleanEnv(AutoWebOperator.ENV_HEADLESS_MODE, AutoWebOperator.DEFAULT_HEADLESS_MODE);
+    }
+
     @Override
-    public String handleRequest(Map<String, String> stringStringMap, Context context) {
+    public Map<String, Object> handleRequest(Map<String, Object> event, Context context) {
+        return runBatch(event, context, null);
+    }
+
+    /**
+     * イベントのジョブを実行し、バッチ全体の状態とジョブ毎の結果を返す。
+     * @param event
+     * @param context
+     * @param downloadListenerFactory nullでない場合、ダウンロードが1ファイル終わるたびに呼び出されるListenerをジョブ毎に作成する
+     * @return
+     */
+    protected static Map<String, Object> runBatch(Map<String, Object> event, Context context, Function<BatchRunner.Job, HttpFileDownloader.Listener> downloadListenerFactory) {
         logger.info("ENVIRONMENT VARIABLES: {}", System.getenv());
-        logger.info("EVENT: {}", stringStringMap);
+        logger.info("EVENT: {}", event);
 
-        AutoWebOperator webOperator = null;
+        boolean warmMode = WarmDriverHolder.isWarmMode();
+        Deadline deadline = null!=context ? Deadline.after(context.getRemainingTimeInMillis()) : Deadline.NONE;  //タイムアウトで強制終了される前に結果を返す
+        logger.info("{}", deadline);
+        WebSiteControlDriver driver = null;
+        OutputSink outputSink = null;
+        Path workspaceFolder = null;
+        Map<String, Object> response = new LinkedHashMap<>();
         try {
-            webOperator = new KanpoWebOperationApp();
-            webOperator.exec();
-            return "SUCCESS.";
+            List<BatchRunner.Job> jobs = BatchRunner.parseJobs(event, DEFAULT_OPERATOR);
+            driver = warmMode ? WarmDriverHolder.acquire(getHeadlessMode()) : WarmDriverHolder.takePrelaunched();
+            if(null==driver) {
+                driver = WebSiteControlDriver.createDriver(getHeadlessMode());
+            }
+            workspaceFolder = WorkspaceManager.getInstance().beginInvocation(null!=context ? context.getAwsRequestId() : null);
+            driver.changeDownloadFolder(WorkspaceManager.getDownloadFolder(workspaceFolder).toString());   //invocation毎のフォルダにダウンロードする
+            long executeStartNanos = System.nanoTime();
+            BatchRunner runner = new BatchRunner(driver, OPERATORS);
+            runner.setDownloadListenerFactory(downloadListenerFactory);
+            runner.setDeadline(deadline);
+            outputSink = OutputSink.fromEnv();
+            runner.setOutputSink(outputSink);
+            List<BatchRunner.JobResult> results = runner.run(jobs);
+            StartupMetrics.recordSince(StartupMetrics.PHASE_EXECUTE, executeStartNanos);
+            response.put("status", BatchRunner.getStatus(results));
+            response.put("jobs", results.stream().map(BatchRunner.JobResult::toMap).toList());
         }
         catch (RuntimeException e) {
-            return "FAILED.";
+            logger.warn("イベントの処理に失敗しました。{}", e.getMessage());
+            response.put("status", BatchRunner.STATUS_FAILED);
+            response.put("error", String.valueOf(e.getMessage()));
         }
         finally {
-            if(null!=webOperator) {
-                webOperator.quit();
+            if(null!=outputSink) {
+                try {
+                    outputSink.close();
+                }
+                catch (IOException e) {
+                    logger.warn("書き出し先を閉じられませんでした。{}", e.getMessage());
+                }
+            }
+            if(null!=driver && !warmMode) {   //warm modeではブラウザを終了せず、次のイベントで使いまわす
+                driver.quit();
+            }
+            else if(null!=driver) {
+                driver.printCommandMetrics();   //quit()しないので、ここでinvocation分を出力する
             }
+            WorkspaceManager.getInstance().endInvocation(workspaceFolder);  //上限を超えた作業フォルダはバックグラウンドで削除する
+            StartupMetrics.emit(null!=context ? context.getFunctionName() : "local");
         }
+        return response;
     }
 }
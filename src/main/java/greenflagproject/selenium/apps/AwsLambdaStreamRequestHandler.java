@@ -0,0 +1,113 @@
+package greenflagproject.selenium.apps;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import greenflagproject.selenium.common.BatchRunner;
+import greenflagproject.selenium.common.HttpFileDownloader;
+import org.openqa.selenium.json.Json;
+import org.openqa.selenium.json.JsonOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AwsLambdaRequestHandlerと同じジョブを実行し、PDFのダウンロードが1件終わるたびに結果を1行のJSON(NDJSON)で出力する。
+ * 最後にバッチ全体の結果(AwsLambdaRequestHandlerの戻り値と同じ内容)をtype=summaryで出力する。
+ * <pre>
+ * {"type":"file","job":0,"operator":"kanpo","file":"...pdf","url":"https://...","bytes":12345,"sha256":"...","durationMillis":120,"fromCache":false,"location":"s3://..."}
+ * {"type":"error","job":0,"operator":"kanpo","file":"...pdf","url":"https://...","error":"..."}
+ * {"type":"summary","status":"SUCCESS","jobs":[...]}
+ * </pre>
+ * locationはOutputSink(環境変数OUTPUT_SINK)に書き出した場合のみ出力する。
+ * 1行ごとにflushするので、レスポンスストリーミングに対応したランタイムでは、呼び出し元は残りのダウンロードを待たずに処理を始められる。
+ */
+public class AwsLambdaStreamRequestHandler implements RequestStreamHandler {
+    private final static Logger logger = LoggerFactory.getLogger(AwsLambdaStreamRequestHandler.class);
+
+    static {
+        AwsLambdaRequestHandler.initialize();
+    }
+
+    @Override
+    public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+        Json json = new Json();
+        Map<String, Object> event;
+        try {
+            String body = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+            event = body.isBlank() ? Map.of() : json.toType(body, Json.MAP_TYPE);
+        }
+        catch (RuntimeException e){
+            logger.warn("イベントを読み込めませんでした。{}", e.getMessage());
+            event = Map.of();
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        AtomicInteger jobCounter = new AtomicInteger();
+        Map<String, Object> summary = AwsLambdaRequestHandler.runBatch(event, context, job -> {
+            int index = jobCounter.getAndIncrement();
+            return new HttpFileDownloader.Listener() {
+                @Override
+                public void onCompleted(HttpFileDownloader.DownloadResult result) {
+                    Map<String, Object> record = new LinkedHashMap<>();
+                    record.put("type", "file");
+                    record.put("job", index);
+                    record.put("operator", job.operator());
+                    record.put("file", String.valueOf(result.path().getFileName()));
+                    record.put("url", result.url());
+                    record.put("bytes", result.bytes());
+                    record.put("sha256", result.sha256());
+                    record.put("durationMillis", result.duration().toMillis());
+                    record.put("fromCache", result.fromCache());
+                    if(null!=result.location()){
+                        record.put("location", result.location());
+                    }
+                    writeRecord(writer, record);
+                }
+
+                @Override
+                public void onFailed(String url, Path target, Throwable error) {
+                    Map<String, Object> record = new LinkedHashMap<>();
+                    record.put("type", "error");
+                    record.put("job", index);
+                    record.put("operator", job.operator());
+                    record.put("file", String.valueOf(target.getFileName()));
+                    record.put("url", url);
+                    record.put("error", String.valueOf(error));
+                    writeRecord(writer, record);
+                }
+            };
+        });
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("type", "summary");
+        record.putAll(summary);
+        writeRecord(writer, record);
+    }
+
+    /**
+     * 1行のJSONを出力してflushする。ダウンロードは並行して終わるので、行が混ざらないように排他する。
+     * @param writer
+     * @param record
+     */
+    protected static void writeRecord(Writer writer, Map<String, Object> record){
+        StringWriter line = new StringWriter();
+        try (JsonOutput jsonOutput = new Json().newOutput(line)){
+            jsonOutput.setPrettyPrint(false);
+            jsonOutput.write(record);
+        }
+        synchronized (writer){
+            try {
+                writer.write(line.toString());
+                writer.write("\n");
+                writer.flush();
+            }
+            catch (IOException e){
+                logger.warn("結果を出力できませんでした。{}", e.getMessage());
+            }
+        }
+    }
+}
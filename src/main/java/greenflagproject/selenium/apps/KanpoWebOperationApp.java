@@ -2,20 +2,24 @@ package greenflagproject.selenium.apps;
 
 import greenflagproject.selenium.common.AutoWebOperator;
 import greenflagproject.selenium.common.CommonUtility;
+import greenflagproject.selenium.common.ExtractField;
+import greenflagproject.selenium.common.ExtractedItem;
+import greenflagproject.selenium.common.HttpFileDownloader;
 import greenflagproject.selenium.common.WebSiteControlDriver;
 import org.openqa.selenium.By;
-import org.openqa.selenium.WebElement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class KanpoWebOperationApp extends AutoWebOperator {
     public static void main(String[] args){
@@ -33,6 +37,17 @@ public class KanpoWebOperationApp extends AutoWebOperator {
 
     private final static Logger logger = LoggerFactory.getLogger(KanpoWebOperationApp.class);
 
+    /**
+     * 官報のWebサイトのURL。
+     * ローカルの疑似サイト(KanpoFixtureServer)などに向ける場合に指定する。
+     */
+    public final static String ENV_KANPO_BASE_URL="KANPO_BASE_URL";
+    public final static String DEFAULT_KANPO_BASE_URL="https://www.kanpo.go.jp/";
+
+    protected String baseUrl = CommonUtility.getEnv(ENV_KANPO_BASE_URL, DEFAULT_KANPO_BASE_URL);
+    public String getBaseUrl(){return baseUrl;}
+    public void setBaseUrl(String baseUrl){this.baseUrl=baseUrl;}
+
     public KanpoWebOperationApp(){
         super();
     }
@@ -41,14 +56,78 @@ public class KanpoWebOperationApp extends AutoWebOperator {
         super(driver);
     }
 
+    /**
+     * ジョブのパラメータ。
+     * date: 対象日(yyyyMMdd)。リンク先のURLの日付で絞り込む
+     * sections: 記事の文言に含まれる語句で絞り込む(いずれかを含むもの)
+     * urls: 記事のページのURL。指定した場合はトップページを検索せず、これらのPDFをダウンロードする
+     * baseUrl: 官報のWebサイトのURL
+     */
+    public final static String PARAMETER_DATE="date";
+    public final static String PARAMETER_SECTIONS="sections";
+    public final static String PARAMETER_URLS="urls";
+    public final static String PARAMETER_BASE_URL="baseUrl";
+
+    /**
+     * チェックポイントの単位。ダウンロードするPDFの一覧(PDFのURLとファイル名)を記録する。
+     * PDF1件ごとの単位はPDFのURL。
+     */
+    protected final static String UNIT_SEARCH="search";
+
+    protected HttpFileDownloader downloader;
+    protected Map<String, String> pdfFileNames = new LinkedHashMap<>();
+    protected boolean searchCompleted = false;
+    protected final Set<String> downloadedPdfUrls = ConcurrentHashMap.newKeySet();
+
     @Override
     protected void execute() {
-        open();
-        search();
+        try {
+            baseUrl = getParameter(PARAMETER_BASE_URL, baseUrl);
+            open();
+            downloader = createSessionDownloader();
+            downloader.addListener(result -> {
+                downloadedPdfUrls.add(result.url());
+                if(Files.exists(result.path())) {
+                    markCompleted(result.url(), result.path());
+                }
+                else {
+                    markCompleted(result.url(), (Object) result.location());   //書き出し先に送ってダウンロードフォルダから消したもの
+                }
+            });
+            pdfFileNames = new LinkedHashMap<>();
+            if(getCompletedValue(UNIT_SEARCH) instanceof Map<?, ?> searched) {
+                logger.info("前回の検索結果を使います。PDF:{}件", searched.size());  //リトライではトップページの検索を飛ばす
+                searched.forEach((pdfUrl, fileName) -> pdfFileNames.put(String.valueOf(pdfUrl), String.valueOf(fileName)));
+                searchCompleted = true;
+                pdfFileNames.forEach(this::submitPdf);
+            }
+            else {
+                searchCompleted = false;
+                List<String> urls = getListParameter(PARAMETER_URLS);
+                if(urls.isEmpty()) {
+                    search();
+                }
+                else {
+                    for(String url : urls) {
+                        String pdfUrl = toPdfUrl(url);
+                        downloadPdf(url, pdfUrl.substring(pdfUrl.lastIndexOf('/')+1));
+                    }
+                }
+                markCompleted(UNIT_SEARCH, pdfFileNames);
+                searchCompleted = true;
+            }
+            downloader.awaitAll();  //登録したPDFのダウンロード完了を待つ
+        }
+        finally {
+            if(null!=downloader) {
+                downloader.close();
+                downloader = null;
+            }
+        }
     }
 
     private void open(){
-        String[] urlArray= {"https://www.kanpo.go.jp/"};
+        String[] urlArray= {baseUrl};
         By waitElement = By.tagName("body");
         get(urlArray, waitElement);
         logger.info("ページ遷移しました[{}]。", getTitle());
@@ -57,68 +136,115 @@ public class KanpoWebOperationApp extends AutoWebOperator {
 
     protected void search(){
         logger.info("#search");
-//        List<WebElement> todayBoxWebElements = findElements(By.className("todayBox"));
-        List<WebElement> todayBoxWebElements = findElements(By.id("todayProducts"));
-        WebElement dateElement = todayBoxWebElements.getFirst().findElement(By.tagName("dt"));
-        String dateString = dateElement.getText().replaceAll("\\n.*$","");  //日付以降の文言が改行に続いて記載されているので、それを除去
-
-        for (WebElement todayBoxWebElement : todayBoxWebElements) {
-            List<WebElement> liTagArray = todayBoxWebElement.findElements(By.tagName("li"));
-            for (WebElement li : liTagArray) {
-                logger.info("#search[{}]", li.getText());
-                download(dateString, li);
+        loadWait(By.tagName("main"));
+        By todayProducts = By.id("todayProducts");
+//        By todayProducts = By.className("todayBox");
+        String dateString = extract(todayProducts, null, ExtractField.text("date", "dt")).getFirst().get("date").replaceAll("\\n.*$","");  //日付以降の文言が改行に続いて記載されているので、それを除去
+
+        List<ExtractedItem> liList = extract(todayProducts, "li",
+                ExtractField.text("text", null),
+                ExtractField.allText("linkTexts", "a"),
+                ExtractField.allAttribute("hrefs", "a", "href"));
+        String date = getParameter(PARAMETER_DATE, null);
+        List<String> sections = getListParameter(PARAMETER_SECTIONS);
+        for (ExtractedItem li : liList) {
+            if(null!=date && li.getAll("hrefs").stream().noneMatch(href -> href.contains("/"+date+"/"))) {
+                continue;
             }
+            if(!sections.isEmpty() && sections.stream().noneMatch(section -> String.valueOf(li.get("text")).contains(section))) {
+                continue;
+            }
+            logger.info("#search[{}]", li.get("text"));
+            download(dateString, li);
         }
 
     }
 
-    protected void download(String dateString, WebElement liWebelement){
+    protected void download(String dateString, ExtractedItem li){
         String titleNumber="";
-        List<WebElement> aTagList = liWebelement.findElements(By.tagName("a"));
-        for(var pdfLink : aTagList) {
-            String pdfLinkUrl = pdfLink.getAttribute("href");
+        List<String> hrefs = li.getAll("hrefs");
+        List<String> linkTexts = li.getAll("linkTexts");
+        for(int i=0; i<hrefs.size(); i++) {
+            String pdfLinkUrl = hrefs.get(i);
             if(false == pdfLinkUrl.contains("full")) {
-                titleNumber=getDocumentTitle(pdfLink);
+                titleNumber=getDocumentTitle(linkTexts.get(i));
             }
             else {
-                String titlePage = getDocumentTitle(pdfLink);
-                downloadPdf(aTagList.getLast(), dateString+"_"+titleNumber+"_"+titlePage.replaceAll("\\[.*\\]","")+".pdf"); //ファイル拡張子はpdfと決めつけて処理をしている。
+                String titlePage = getDocumentTitle(linkTexts.get(i));
+                downloadPdf(hrefs.getLast(), dateString+"_"+titleNumber+"_"+titlePage.replaceAll("\\[.*\\]","")+".pdf"); //ファイル拡張子はpdfと決めつけて処理をしている。
             }
         }
     }
-    protected String getDocumentTitle(WebElement aWebelement){
-        return aWebelement.getText().replaceAll("\n","");
+    protected String getDocumentTitle(String linkText){
+        return linkText.replaceAll("\n","");
     }
-    protected void downloadPdf(WebElement aWebelement, String title){
-        loadWait(By.tagName("main"));
-        String currentUrl = aWebelement.getAttribute("href");
+    protected void downloadPdf(String currentUrl, String title){
+        String pdfUrl = toPdfUrl(currentUrl);
+        pdfFileNames.put(pdfUrl, title);
+        submitPdf(pdfUrl, title);
+    }
+
+    /**
+     * PDFのダウンロードを登録する。前回までの実行でダウンロード済みのPDFは飛ばす。
+     * @param pdfUrl
+     * @param fileName
+     */
+    protected void submitPdf(String pdfUrl, String fileName){
+        if(isCompleted(pdfUrl)) {
+            logger.debug("ダウンロード済みのため飛ばします[{}]", fileName);
+            downloadedPdfUrls.add(pdfUrl);
+            return;
+        }
+        if(deadline.isExpired()) {
+            return; //期限を過ぎたので新しいダウンロードは始めない(getPendingUnits()で返す)
+        }
+        downloader.submit(pdfUrl, Paths.get(downloadFolderPath, fileName));
+    }
+
+    /**
+     * 検索が終わっていない場合はsearch、ダウンロードが終わっていないPDFのURLを返す。
+     * @return
+     */
+    @Override
+    public List<String> getPendingUnits() {
+        List<String> pending = new ArrayList<>();
+        if(!searchCompleted) {
+            pending.add(UNIT_SEARCH);
+        }
+        pdfFileNames.keySet().stream().filter(pdfUrl -> !downloadedPdfUrls.contains(pdfUrl)).forEach(pending::add);
+        return pending;
+    }
+
+    /**
+     * 記事のページのURLからPDFのURLを作る。
+     * @param currentUrl
+     * @return
+     */
+    protected static String toPdfUrl(String currentUrl){
         Path path = Paths.get(currentUrl);
         Path base = path.getParent();
         Path con = path.getFileName();
         Path pdfUrl=Paths.get(base.toString(),"pdf",con.toString().replaceAll("f.html",".pdf"));//ファイルの種類はpdfと決めつけて処理をしている。
-        try {
-            downloadFile(pdfUrl.toString().replaceAll("https:/", "https://"), title);   //Paths.getで処理した際に「//」が「/」になってしまうので、対応しておく。本質的には、Paths.getの利用を見直す。
-        }
-        catch (IOException ignore){}
+        return pdfUrl.toString().replaceFirst("^(https?):/", "$1://");   //Paths.getで処理した際に「//」が「/」になってしまうので、対応しておく。本質的には、Paths.getの利用を見直す。
     }
 
     /**
-     * HttpURLConnectionでデータをダウンロード
+     * HttpClientでデータをダウンロード
      * @param linkURL
      * @param fileName
      * @throws IOException
      */
     public void downloadFile(String linkURL, String fileName) throws IOException {
-        URL url = java.net.URI.create(linkURL).toURL();
-        HttpURLConnection httpConn = (HttpURLConnection) url.openConnection();
-        InputStream inputStream = httpConn.getInputStream();
-        FileOutputStream outputStream = new FileOutputStream(Paths.get(downloadFolderPath,fileName).toFile());
-        byte[] buffer = new byte[4096];
-        int bytesRead;
-        while ((bytesRead = inputStream.read(buffer)) != -1) {
-            outputStream.write(buffer, 0, bytesRead);
+        try(HttpFileDownloader fileDownloader = createFileDownloader()) {
+            fileDownloader.download(linkURL, Paths.get(downloadFolderPath, fileName));
         }
-        outputStream.close();
-        inputStream.close();
+    }
+
+    /**
+     * downloadFile()で使うHttpFileDownloaderを作成する。DownloadCacheはデフォルトのもの(環境変数DOWNLOAD_CACHE_ENABLEDに従う)を使う。
+     * @return
+     */
+    protected HttpFileDownloader createFileDownloader(){
+        return new HttpFileDownloader(1, 1);
     }
 }
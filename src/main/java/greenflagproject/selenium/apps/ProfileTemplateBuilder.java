@@ -0,0 +1,51 @@
+package greenflagproject.selenium.apps;
+
+import greenflagproject.selenium.common.AutoWebOperator;
+import greenflagproject.selenium.common.CommonUtility;
+import greenflagproject.selenium.common.ProfileTemplate;
+import greenflagproject.selenium.common.WebSiteControlDriver;
+import greenflagproject.selenium.common.WorkspaceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * KanpoWebOperationAppを1回実行し、そのブラウザのプロファイルをテンプレートとして保存する(priming run)。
+ * 保存したフォルダをイメージに含め、環境変数PROFILE_TEMPLATE_PATHに指定する。
+ * <pre>
+ * java -cp "./:./lib/*" greenflagproject.selenium.apps.ProfileTemplateBuilder /opt/profile-template
+ * </pre>
+ * 引数がない場合は環境変数PROFILE_TEMPLATE_PATHのフォルダに保存する。Linuxのみ(--user-data-dirを指定する場合のみ)。
+ */
+public class ProfileTemplateBuilder {
+    private final static Logger logger = LoggerFactory.getLogger(ProfileTemplateBuilder.class);
+
+    public static void main(String[] args){
+        String templatePath = 0<args.length ? args[0] : CommonUtility.getEnv(ProfileTemplate.ENV_PROFILE_TEMPLATE_PATH, "");
+        if(templatePath.isEmpty()){
+            throw new RuntimeException(String.format("保存先のフォルダを引数もしくはEnv %sで指定してください。", ProfileTemplate.ENV_PROFILE_TEMPLATE_PATH));
+        }
+        WebSiteControlDriver driver = WebSiteControlDriver.createDriver(CommonUtility.getBooleanEnv(AutoWebOperator.ENV_HEADLESS_MODE, AutoWebOperator.DEFAULT_HEADLESS_MODE));
+        Path browserFolder = driver.getBrowserFolder();
+        AutoWebOperator webOperator = new KanpoWebOperationApp(driver);
+        try {
+            webOperator.exec();
+        }
+        finally {
+            webOperator.quit();     //プロファイルのファイルを書き込ませるため、保存の前にブラウザを終了する
+        }
+        if(null==browserFolder){
+            throw new RuntimeException("ブラウザのプロファイルのフォルダがありません。");
+        }
+        try {
+            ProfileTemplate.save(WorkspaceManager.getProfileFolder(browserFolder), Paths.get(templatePath), ProfileTemplate.getMaxBytes());
+        }
+        catch (IOException e){
+            throw new RuntimeException("プロファイルのテンプレートを保存できませんでした。", e);
+        }
+        logger.info("プロファイルのテンプレートを作成しました[{}]", templatePath);
+    }
+}
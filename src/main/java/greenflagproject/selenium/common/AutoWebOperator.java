@@ -19,13 +19,15 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor, HasCapabilities, HasDownloads, HasFederatedCredentialManagement, HasVirtualAuthenticator, Interactive, PrintsPage, TakesScreenshot {
     private final static Logger logger = LoggerFactory.getLogger(AutoWebOperator.class);
@@ -46,6 +48,20 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
     final protected int DEFAULT_EXECUTE_RETRY_TIMES=1;
     protected int executeMaxRetryTimes;
 
+    /**
+     * ブラウザに読み込ませるリソースを制限するかの指定。
+     * デフォルトはtrue(ResourcePolicy.defaultPolicy()、もしくは継承先のgetResourcePolicy()で制限する)。
+     */
+    public final static String ENV_RESOURCE_POLICY_ENABLED="RESOURCE_POLICY_ENABLED";
+    public final static boolean DEFAULT_RESOURCE_POLICY_ENABLED=true;
+
+    /**
+     * 要素の表示待ちをページ内のMutationObserverで行うかの指定。
+     * デフォルトはtrue。falseの場合はWebDriverWaitで500ms毎に確認する。
+     */
+    public final static String ENV_PUSH_WAIT_ENABLED="PUSH_WAIT_ENABLED";
+    public final static boolean DEFAULT_PUSH_WAIT_ENABLED=true;
+
     protected WebSiteControlDriver driver;
     protected List<String> pageStack;
 
@@ -204,34 +220,140 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
 
     public void exec(){
         logger.info("Browser version: {}", driver.getCapabilities().getBrowserVersion());
+        driver.applyResourcePolicy(CommonUtility.getBooleanEnv(ENV_RESOURCE_POLICY_ENABLED, DEFAULT_RESOURCE_POLICY_ENABLED) ? getResourcePolicy() : ResourcePolicy.ALLOW_ALL);
+        checkpoint = CheckpointStore.open(getClass().getName(), parameters);
+        if(null!=checkpoint && null!=driver.getDownloadFolderPath()){
+            checkpoint.setOutputFolder(Paths.get(driver.getDownloadFolderPath()));    //前回のinvocationのファイルは今回のフォルダに置き直し、ジョブの結果に含める
+        }
         try{
             RuntimeException exception=null;
             int loopCounter=0;
-            while(0==loopCounter || (null!=exception && loopCounter< executeMaxRetryTimes)){
+            while(0==loopCounter || (null!=exception && loopCounter< executeMaxRetryTimes && !deadline.isExpired())){
                 logger.info("AutoWebOperator.exec Ver:2025-05-19");
+                if(null!=checkpoint && 0<checkpoint.size()){
+                    logger.info("チェックポイントから再開します。完了済み:{}件", checkpoint.size());
+                }
                 exception=null;
                 try {
                     execute();
                 }
                 catch(RuntimeException e){
                     exception=e;
-                    exception.printStackTrace(System.out);
+                    logger.warn("実行でエラーが発生しました({}回目)。{}", loopCounter+1, e.toString());   //スタックトレースはスナップショットに保存する
+                    captureDiagnostics("exec"+(loopCounter+1), e);
+                    if(null!=checkpoint){
+                        checkpoint.flush();     //リトライの前に、ここまでの完了を残す
+                    }
                 }
                 finally {
                     loopCounter++;
                 }
             }
             if(null!=exception){
-                printPageText();
-                throw exception;
+                if(deadline.isExpired() && !(exception instanceof DeadlineExceededException)){
+                    exception = new DeadlineExceededException("実行の期限を過ぎたため処理を打ち切りました。", exception);
+                }
+                throw exception;    //チェックポイントは残し、次の実行で完了済みの単位を飛ばす
+            }
+            if(null!=checkpoint){
+                checkpoint.delete();
             }
         }
         finally {
-            close();
+            if(null!=checkpoint){
+                checkpoint.flush();     //失敗したジョブは次のinvocationで完了済みの単位を飛ばす
+            }
+            if(!driver.isReusable()) {  //使いまわすブラウザはウィンドウを閉じずに次のイベントで初期化する
+                close();
+            }
         }
     }
     abstract protected void execute();
 
+    /**
+     * 実行の期限。要素の表示待ち、ダウンロードの待ちは期限までの残り時間に抑える。
+     * デフォルトは期限なし。
+     */
+    protected Deadline deadline=Deadline.NONE;
+
+    public Deadline getDeadline(){
+        return deadline;
+    }
+
+    public void setDeadline(Deadline deadline){
+        this.deadline = null==deadline ? Deadline.NONE : deadline;
+    }
+
+    /**
+     * 期限で打ち切った場合に、終わっていない処理の単位(ダウンロードしていないファイルのURLなど)を返す。
+     * 継承先で必要に応じてOverrideする。
+     * @return
+     */
+    public List<String> getPendingUnits(){
+        return List.of();
+    }
+
+    /**
+     * 処理の単位の完了の記録。exec()の中で使える。
+     */
+    protected CheckpointStore checkpoint=null;
+
+    /**
+     * 処理の単位(ステップ、ダウンロード1件など)が、前回までの実行で完了しているか。
+     * execute()の中で完了済みの単位を飛ばすために使う。
+     * @param unit 単位の名前(ダウンロードの場合はURLなど)
+     * @return チェックポイントを使わない設定の場合はfalse
+     */
+    protected boolean isCompleted(String unit){
+        return null!=checkpoint && checkpoint.isCompleted(unit);
+    }
+
+    protected void markCompleted(String unit){
+        if(null!=checkpoint){
+            checkpoint.markCompleted(unit);
+        }
+    }
+
+    /**
+     * 処理の単位の完了を、成果物のファイルと一緒に記録する。ファイルが消えた場合は完了していないものとして扱う。
+     * @param unit
+     * @param output
+     */
+    protected void markCompleted(String unit, Path output){
+        if(null!=checkpoint){
+            checkpoint.markCompleted(unit, output);
+        }
+    }
+
+    /**
+     * 処理の単位の完了を、次回の実行で使う値(抽出した一覧など)と一緒に記録する。
+     * @param unit
+     * @param value JSONにできるもの(Map、List、文字列、数値)
+     */
+    protected void markCompleted(String unit, Object value){
+        if(null!=checkpoint){
+            checkpoint.markCompleted(unit, value);
+        }
+    }
+
+    /**
+     * 完了した単位に記録した値を返す。
+     * @param unit
+     * @return 完了していない場合はnull
+     */
+    protected Object getCompletedValue(String unit){
+        return null==checkpoint ? null : checkpoint.getValue(unit);
+    }
+
+    /**
+     * ブラウザに読み込ませるリソースの指定。
+     * デフォルトはドキュメント、スクリプト、XHRのみ。画像やCSSが必要なWebSiteでは継承先でOverrideする。
+     * @return
+     */
+    protected ResourcePolicy getResourcePolicy(){
+        return ResourcePolicy.defaultPolicy();
+    }
+
 
 
 
@@ -242,6 +364,31 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
         timeoutSecond=sec;
     }
     final protected WebDriverWait wait = new WebDriverWait(this, Duration.ofSeconds(timeoutSecond)); // 最大10秒待つ
+    private MutationObserverWait pushWait;    //コンストラクタで自身を渡さないよう、最初に使う時に作成する
+    protected boolean pushWaitEnabled = CommonUtility.getBooleanEnv(ENV_PUSH_WAIT_ENABLED, DEFAULT_PUSH_WAIT_ENABLED);
+
+    /**
+     * 要素が表示されるまで最大timeoutSecond秒待つ。
+     * @param location
+     */
+    public void waitVisible(By location){
+        deadline.check("表示待ち "+location);
+        Duration timeout = deadline.cap(Duration.ofSeconds(timeoutSecond));
+        if(pushWaitEnabled){
+            getPushWait().waitVisible(location, timeout);
+        }
+        else {
+            wait.withTimeout(timeout).until(ExpectedConditions.visibilityOfElementLocated(location));
+        }
+    }
+
+    protected synchronized MutationObserverWait getPushWait(){
+        if(null==pushWait){
+            pushWait = new MutationObserverWait(this);
+        }
+        return pushWait;
+    }
+
     // 非表示ファイルを除くフィルタ
     protected FileFilter downloadFilter = new FileFilter() {
         @Override
@@ -267,7 +414,7 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
     }
 
     protected String downloadFolderPath;
-    protected int beforeDownloadFolderFileNum =0;    //ダウンロード処理前のダウンロードフォルダファイル数
+    protected int downloadTimeoutSecond=60;
     protected LocalDateTime beforeDownloadDateTime=null;
     protected Instant beforeDownloadInstant=Instant.now();
 
@@ -290,17 +437,17 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
                 return;
             } catch (RuntimeException e) {
                 logger.warn("ページ遷移でエラーが発生しました URL[{}] TITLE[{}]。{}", url,getTitle(), e.getMessage());
-                printPageText();
+                captureDiagnostics("get", e);
             }
         }
     }
 
     protected void pageLoadWait(By waitElement){
         try {
-            wait.until(ExpectedConditions.visibilityOfElementLocated(waitElement));
+            waitVisible(waitElement);
         }
         catch (RuntimeException e){
-            printPageText();
+            captureDiagnostics("pageLoadWait", e);
             throw e;
         }
     }
@@ -308,24 +455,40 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
     protected void setBeforeDownloadInfo(){
         setBeforeDownloadInfo(downloadFolderPath);
     }
+
+    /**
+     * ダウンロードを始める操作(クリックなど)の前に呼び出す。
+     * ダウンロード1件分の完了を待つ準備をする。
+     * @param folderPath
+     */
     protected void setBeforeDownloadInfo(final String folderPath){
         beforeDownloadDateTime=LocalDateTime.now();
         beforeDownloadInstant=Instant.now();
         File directory = new File(folderPath);
         // ディレクトリが存在するか確認
-        if (directory.exists() && directory.isDirectory()) {
-            // ファイルとディレクトリの一覧を取得
-            File[] files = directory.listFiles(downloadFilter);
-            if (files != null) {
-                beforeDownloadFolderFileNum =files.length;
-            } else {
-                beforeDownloadFolderFileNum =-1;
-                throw new RuntimeException("ファイルが見つかりませんでした。");
-            }
-        } else {
-            beforeDownloadFolderFileNum =-1;
+        if (!directory.exists() || !directory.isDirectory()) {
             throw new RuntimeException("指定したパスは存在しないか、ディレクトリではありません。");
         }
+        pendingDownload = expectDownload();
+    }
+
+    protected CompletableFuture<File> pendingDownload=null;
+
+    /**
+     * ダウンロード完了を検知するDownloadTrackerを返す。
+     * @return
+     */
+    protected DownloadTracker getDownloadTracker(){
+        return driver.getDownloadTracker(downloadFilter);
+    }
+
+    /**
+     * ダウンロード1件分の完了を待つFutureを登録する。ダウンロードを始める操作の前に呼び出す。
+     * 複数回呼び出せば、重なったダウンロードをそれぞれ待つことができる。
+     * @return
+     */
+    public CompletableFuture<File> expectDownload(){
+        return getDownloadTracker().expect();
     }
 
     protected File downloadedFile;
@@ -369,68 +532,113 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
      */
     protected void setProperty(){}
 
+    /**
+     * ジョブのパラメータ(対象日、絞り込み条件、URLの一覧など)。
+     * Lambdaのイベントで渡されたものをexec()の前に設定する。内容は継承先ごとに決める。
+     */
+    protected Map<String, Object> parameters = Map.of();
+
+    public void setParameters(Map<String, Object> parameters){
+        this.parameters = null==parameters ? Map.of() : parameters;
+    }
+
+    /**
+     * 設定がない場合はdefaultValueを返す
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    protected String getParameter(String key, String defaultValue){
+        Object value = parameters.get(key);
+        if(null!=value && !String.valueOf(value).isEmpty()){
+            return String.valueOf(value);
+        }
+        return defaultValue;
+    }
+
+    /**
+     * 一覧のパラメータを返す。1件だけ文字列で指定された場合も一覧にする。
+     * @param key
+     * @return 設定がない場合は空の一覧
+     */
+    protected List<String> getListParameter(String key){
+        Object value = parameters.get(key);
+        if(value instanceof Collection<?> collection){
+            return collection.stream().map(String::valueOf).toList();
+        }
+        if(null!=value && !String.valueOf(value).isEmpty()){
+            return List.of(String.valueOf(value));
+        }
+        return List.of();
+    }
+
 
+    /**
+     * ダウンロードの完了を待ち、ダウンロードしたファイルを返す。
+     * setBeforeDownloadInfo()で登録したダウンロードを待つ。登録していない場合は、この時点から次に完了するダウンロードを待つ。
+     * @param dir
+     * @return
+     */
     protected File getDownloadFile(String dir){
         if(false==executedDownload){
             logger.info("ダウンロード処理が実行されていないため、ダウンロードファイル確認処理をスキップします。");
             return null;
         }
-        //    List<String> files = ((HasDownloads) driver).getDownloadableFiles();
+        CompletableFuture<File> future = null!=pendingDownload ? pendingDownload : expectDownload();
+        pendingDownload=null;
+        try {
+            File file = future.get(deadline.cap(Duration.ofSeconds(downloadTimeoutSecond)).toMillis(), TimeUnit.MILLISECONDS);
+            file.deleteOnExit();
+            return Paths.get(dir, file.getName()).toFile();
+        }
+        catch (java.util.concurrent.TimeoutException e){
+            future.cancel(false);
+            deadline.check("ダウンロード待ち");
+            throw new RuntimeException("ダウンロードタイムアウト。");
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e){
+            throw new RuntimeException("ダウンロードフォルダ処理エラー。", e.getCause());
+        }
+    }
 
-        File directory = new File(dir);
-        // ディレクトリが存在するか確認
-        if (directory.exists() && directory.isDirectory()) {
-            // ファイルとディレクトリの一覧を取得
-            File[] files = directory.listFiles(downloadFilter);
-            if (files != null) {
-                int loopMax=60;
-                int loopCounter=0;
-//                logger.debug(directory.listFiles(filter).toString());
-                boolean found=false;
-                while (loopCounter<loopMax) {   //ファイルが見つからなければ繰り返す。ファイルリストの取得からやり直すので、ループを外に一つ作った
-                    logger.debug("beforeDownloadFolderFileNum: {}, directory.listFiles(filter): {}", beforeDownloadFolderFileNum, directory.listFiles(downloadFilter));
-                    while (beforeDownloadFolderFileNum == Objects.requireNonNull(directory.listFiles(downloadFilter)).length && loopCounter < loopMax) {
-                        loopCounter++;
-                        try {
-                            Thread.sleep(1000);
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                    logger.info("loopCounter:{}{}", loopCounter, loopCounter == loopMax ? " タイムアウト" : "");
-                    if (loopCounter == loopMax) {
-                        logger.debug("{} beforeDownloadFolderFileNum:{} directory.listFiles(filter):{}", directory.getPath(), beforeDownloadFolderFileNum, directory.listFiles(downloadFilter).length);
-                        throw new RuntimeException("ダウンロードタイムアウト。");
-                    }
-                    for (File file : directory.listFiles(downloadFilter)) {
-                        try {
-                            var udt = Files.getLastModifiedTime(file.toPath()).toInstant();
-                            var diff = udt.compareTo(beforeDownloadInstant);
-                            logger.debug("beforeDownloadInstant:{}", beforeDownloadInstant);
-                            logger.debug("filepath:{}", file.toPath());
-                            logger.debug("udt:{}", udt);
-                            logger.debug("diff:{}", diff);
-                            if (0 < diff) {
-                                file.deleteOnExit();
-                                logger.info("ダウンロードファイル: [{}]", file.toString());
-                                return Paths.get(dir, file.getName()).toFile();
-                            } else {
-                                logger.debug("ファイルチェックエラー: [{}]", file.toString());
-                            }
-                        } catch (IOException e) {
-                            throw new RuntimeException("ダウンロードフォルダ処理エラー。");
-                        }
-                    }
-                }
-            }
-            else {
-                throw new RuntimeException("ファイルが見つかりませんでした。");
-            }
-        } else {
-            throw new RuntimeException("指定したパスは存在しないか、ディレクトリではありません。");
+    /**
+     * ブラウザのログインセッションを引き継いだHttpFileDownloaderを作成する。
+     * DOMから取得したファイルのURLをHTTPで直接ダウンロードできるので、getDownloadFileでダウンロード完了を待つ必要がない。
+     * @return
+     */
+    public HttpFileDownloader createSessionDownloader(){
+        HttpFileDownloader downloader = driver.createSessionDownloader();
+        downloader.setDeadline(deadline);
+        downloader.setOutputSink(outputSink, OutputSink.keepLocalCopy());
+        if(null!=downloadListener){
+            downloader.addListener(downloadListener);
         }
+        return downloader;
+    }
+
+    protected HttpFileDownloader.Listener downloadListener=null;
+    protected OutputSink outputSink=null;
 
-        throw new RuntimeException("指定したパスのファイルを探す処理に失敗しました。");
+    /**
+     * createSessionDownloader()で作成するHttpFileDownloaderの書き出し先を設定する。
+     * ダウンロードフォルダのファイルを残すかは環境変数OUTPUT_KEEP_LOCAL_COPYで指定する。
+     * @param outputSink nullの場合は書き出さない
+     */
+    public void setOutputSink(OutputSink outputSink){
+        this.outputSink=outputSink;
+    }
+
+    /**
+     * createSessionDownloader()で作成するHttpFileDownloaderに登録するListenerを設定する。
+     * ファイルが揃うのを待たずに、1ファイルずつ結果を返す場合に使う。
+     * @param downloadListener
+     */
+    public void setDownloadListener(HttpFileDownloader.Listener downloadListener){
+        this.downloadListener=downloadListener;
     }
 
     public String getBaseLocation(){
@@ -441,11 +649,23 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
         loadWait(By.xpath(xPath));
     }
     public void loadWait(By location){
-        wait.until(ExpectedConditions.visibilityOfElementLocated(location));
+        waitVisible(location);
     }
     public WebElement findElement(String xPath){
         return this.findElement(By.xpath(xPath));
     }
+
+    /**
+     * 複数要素のテキスト・属性を1回のWebDriver通信でまとめて取り出す。
+     * 例: extract(By.id("list"), "li", ExtractField.text("title", "a"), ExtractField.allAttribute("links", "a", "href"))
+     * @param root 対象の範囲(CSSセレクタ・XPathに変換できるロケーター)
+     * @param itemSelector rootの中で1件分となる要素のCSSセレクタ。nullの場合はroot自身が1件分になる
+     * @param fields 取り出す項目
+     * @return
+     */
+    public List<ExtractedItem> extract(By root, String itemSelector, ExtractField... fields){
+        return new BulkExtractor(this).extract(root, itemSelector, List.of(fields));
+    }
     public String getText(String xPath){
         return getText(findElement(xPath));
     }
@@ -497,9 +717,10 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
     }
     public void inputFormByXpath(By b, String text, int maxRetryTimes){
         for(int retryTimes=0; retryTimes<maxRetryTimes; retryTimes++){
+            deadline.check("入力 "+b);
             try {
                 WebElement e = this.findElement(b);
-                wait.until(ExpectedConditions.visibilityOfElementLocated(b));
+                waitVisible(b);
                 inputForm(e, text);
                 String s = e.getAttribute("value");
                 if(s!=null && s.equals(text)) {
@@ -509,7 +730,7 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
                     logger.warn("inputFormByXpath retryTimes:{}", retryTimes);
                     e.clear();
                     try {
-                        Thread.sleep(1500);
+                        Thread.sleep(deadline.cap(Duration.ofMillis(1500)).toMillis());
                     }
                     catch (InterruptedException ignored) {}
                 }
@@ -517,7 +738,7 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
             catch (Exception e){
                 logger.error("inputFormByXpath retryTimes:{} [{}]", retryTimes, e.toString());
                 try {
-                    Thread.sleep(1500);
+                    Thread.sleep(deadline.cap(Duration.ofMillis(1500)).toMillis());
                 }
                 catch (InterruptedException ex) {
 //                    throw new RuntimeException(ex);
@@ -538,7 +759,7 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
 
     public void inputForm(By by, String text, boolean doWait){
         if(doWait) {
-            wait.until(ExpectedConditions.visibilityOfElementLocated(by));
+            waitVisible(by);
         }
         inputForm(this.findElement(by), text);
         logger.debug("celenium inputForm:{} value:{}",by.toString(), text);
@@ -576,7 +797,7 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
     }
     public void clickA(By by, boolean doWait){
         if(doWait) {
-            wait.until(ExpectedConditions.visibilityOfElementLocated(by));
+            waitVisible(by);
         }
         var element = this.findElement(by);
         element.click();
@@ -604,7 +825,7 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
     }
     public void performElement(By by, boolean doWait){
         if(doWait) {
-            wait.until(ExpectedConditions.visibilityOfElementLocated(by));
+            waitVisible(by);
         }
         Actions actions = new Actions(this);
         var element = this.findElement(by);
@@ -634,7 +855,7 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
     }
     public void clickElement(By by, boolean doWait){
         if(doWait) {
-            wait.until(ExpectedConditions.visibilityOfElementLocated(by));
+            waitVisible(by);
         }
         var element = this.findElement(by);
         element.click();
@@ -675,7 +896,7 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
      */
     protected void loadingWait(WebElement element){
         final int interval=500;
-        final int maxWaitMilliSec=20*1000;
+        final long maxWaitMilliSec=deadline.cap(Duration.ofSeconds(20)).toMillis();
         int waitingMilliSec=0;
         try {
             if (!element.isDisplayed()) {
@@ -699,15 +920,34 @@ abstract public class AutoWebOperator implements WebDriver, JavascriptExecutor,
         return true;
     }
 
+    /**
+     * 現在のページのスナップショットを保存する。
+     * ページ全体のテキストをログに出力すると大きなページでは時間がかかるので、DiagnosticsCollectorで上限のあるスナップショットにした。
+     */
     protected void printPageText(){
-        logger.debug("ページテキスト出力");
-        try {
-            By element = By.xpath("/html");
-            logger.debug(this.findElement(element).getText());
-        }
-        catch (RuntimeException e){
-            logger.warn("ページテキスト出力でエラーが発生しました。{}", e.getMessage());
+        captureDiagnostics("page", null);
+    }
+
+    /**
+     * 失敗時の調査用に、現在のページのスナップショットを作業フォルダ(ダウンロードフォルダと同じ階層のdiagnosticsフォルダ)に保存する。
+     * 圧縮と書き込みはバックグラウンドで行う。件数・サイズの上限(1回の実行毎)を超えた分は保存しない。
+     * @param reason 保存した理由(処理の名前など)
+     * @param exception 原因の例外。ない場合はnull
+     */
+    protected void captureDiagnostics(String reason, Throwable exception){
+        if(null==diagnostics || null==downloadFolderPath){
+            return;
         }
+        diagnostics.capture(driver, Paths.get(downloadFolderPath).resolveSibling(DiagnosticsCollector.DIAGNOSTICS_FOLDER_NAME), reason, exception);
+    }
+
+    /**
+     * 失敗時のスナップショット。環境変数DIAGNOSTICS_ENABLEDがfalseの場合はnull。
+     */
+    protected DiagnosticsCollector diagnostics=DiagnosticsCollector.fromEnv();
+
+    public DiagnosticsCollector getDiagnostics(){
+        return diagnostics;
     }
 
     /**
@@ -0,0 +1,325 @@
+package greenflagproject.selenium.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 1つのイベントで渡された複数のジョブを、同じWebSiteControlDriverで順に実行する。
+ * ブラウザの起動はバッチで1回だけになり、ジョブの間はreset()で初期化する。
+ * 途中のジョブが失敗しても残りのジョブは実行し、ジョブ毎の結果(状態、時間、ダウンロードしたファイル)を返す。
+ * BATCH_CONCURRENCYが2以上の場合は、ジョブ毎にブラウザコンテキスト(WebSiteControlDriver.newContext())を作成し、
+ * 1つのブラウザで同時に実行する。
+ * <pre>
+ * {"jobs":[{"operator":"kanpo","parameters":{"sections":["公告"]}}, {"operator":"kanpo","parameters":{"urls":["..."]}}]}
+ * </pre>
+ */
+public class BatchRunner {
+    private final static Logger logger = LoggerFactory.getLogger(BatchRunner.class);
+
+    public final static String STATUS_SUCCESS="SUCCESS";
+    public final static String STATUS_PARTIAL="PARTIAL";
+    public final static String STATUS_FAILED="FAILED";
+    /**
+     * 実行の期限を過ぎたため始めなかったジョブ
+     */
+    public final static String STATUS_PENDING="PENDING";
+
+    /**
+     * 同時に実行するジョブの数。2以上の場合は、ジョブ毎に同じブラウザ内の別のブラウザコンテキストで実行する。
+     * ブラウザコンテキストを作成できないブラウザ(Chromium以外)では順に実行する。
+     * デフォルトは1(順に実行する)。
+     */
+    public final static String ENV_BATCH_CONCURRENCY="BATCH_CONCURRENCY";
+    public final static int DEFAULT_BATCH_CONCURRENCY=1;
+
+    /**
+     * ジョブ
+     * @param operator オペレーター名(登録したAutoWebOperatorの名前)
+     * @param parameters AutoWebOperator.setParameters()に渡すパラメータ
+     */
+    public record Job(String operator, Map<String, Object> parameters){}
+
+    /**
+     * ジョブの結果
+     * @param operator
+     * @param status SUCCESS/FAILED、実行の期限で打ち切った場合はPARTIAL、始めなかった場合はPENDING
+     * @param elapsedMillis
+     * @param files ダウンロードしたファイル名
+     * @param pending 実行の期限で打ち切った場合に、終わっていない処理の単位
+     * @param error 失敗した場合のメッセージ
+     */
+    public record JobResult(String operator, String status, long elapsedMillis, List<String> files, List<String> pending, String error){
+        public Map<String, Object> toMap(){
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("operator", operator);
+            map.put("status", status);
+            map.put("elapsedMillis", elapsedMillis);
+            map.put("files", files);
+            if(!pending.isEmpty()){
+                map.put("pending", pending);
+            }
+            if(null!=error){
+                map.put("error", error);
+            }
+            return map;
+        }
+    }
+
+    protected final WebSiteControlDriver driver;
+    protected final Map<String, Function<WebSiteControlDriver, ? extends AutoWebOperator>> operators;
+    protected Function<Job, HttpFileDownloader.Listener> downloadListenerFactory=null;
+    protected int concurrency=CommonUtility.getIntEnv(ENV_BATCH_CONCURRENCY, DEFAULT_BATCH_CONCURRENCY);
+    protected Deadline deadline=Deadline.NONE;
+    protected OutputSink outputSink=null;
+
+    /**
+     * @param driver
+     * @param operators オペレーター名とAutoWebOperatorの作成処理
+     */
+    public BatchRunner(WebSiteControlDriver driver, Map<String, Function<WebSiteControlDriver, ? extends AutoWebOperator>> operators){
+        this.driver = driver;
+        this.operators = operators;
+    }
+
+    /**
+     * ジョブ毎に、ダウンロードが1ファイル終わるたびに呼び出されるListenerを設定する。
+     * @param downloadListenerFactory ジョブからListenerを作成する処理
+     */
+    public void setDownloadListenerFactory(Function<Job, HttpFileDownloader.Listener> downloadListenerFactory){
+        this.downloadListenerFactory = downloadListenerFactory;
+    }
+
+    public void setConcurrency(int concurrency){
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * ジョブのAutoWebOperatorがダウンロードしたファイルの書き出し先を指定する。
+     * @param outputSink nullの場合は書き出さない
+     */
+    public void setOutputSink(OutputSink outputSink){
+        this.outputSink = outputSink;
+    }
+
+    /**
+     * 実行の期限を指定する。期限を過ぎた後はジョブを始めず(PENDING)、実行中のジョブは打ち切って途中までの結果(PARTIAL)を返す。
+     * @param deadline
+     */
+    public void setDeadline(Deadline deadline){
+        this.deadline = null==deadline ? Deadline.NONE : deadline;
+    }
+
+    /**
+     * イベントからジョブを取り出す。jobsがない場合は、イベント全体をパラメータとしたdefaultOperatorのジョブ1件にする。
+     * @param event
+     * @param defaultOperator
+     * @return
+     */
+    public static List<Job> parseJobs(Map<String, Object> event, String defaultOperator){
+        Map<String, Object> source = null==event ? Map.of() : event;
+        if(!(source.get("jobs") instanceof List<?> jobs)){
+            return List.of(new Job(defaultOperator, source));
+        }
+        List<Job> result = new ArrayList<>();
+        for(Object o : jobs){
+            if(!(o instanceof Map<?, ?> job)){
+                throw new RuntimeException("ジョブの形式が正しくありません。"+o);
+            }
+            Object operator = job.get("operator");
+            Map<String, Object> parameters = new LinkedHashMap<>();
+            if(job.get("parameters") instanceof Map<?, ?> map){
+                map.forEach((key, value) -> parameters.put(String.valueOf(key), value));
+            }
+            result.add(new Job(null==operator ? defaultOperator : String.valueOf(operator), parameters));
+        }
+        return result;
+    }
+
+    /**
+     * ジョブを順に実行する。実行中はdriverを使いまわす設定にし、exec()の終了時にウィンドウを閉じないようにする。
+     * @param jobs
+     * @return
+     */
+    public List<JobResult> run(List<Job> jobs){
+        int threads = Math.min(concurrency, jobs.size());
+        if(1<threads && !driver.isChromium()){
+            logger.info("ブラウザコンテキストを作成できないブラウザのため、ジョブを順に実行します。");
+            threads = 1;
+        }
+        List<JobResult> results = new ArrayList<>();
+        boolean reusable = driver.isReusable();
+        driver.setReusable(true);
+        try {
+            if(1<threads){
+                return runConcurrently(jobs, threads);
+            }
+            for(int i=0; i<jobs.size(); i++){
+                if(deadline.isExpired()){
+                    results.add(pendingResult(jobs.get(i)));
+                    continue;
+                }
+                if(0<i){
+                    driver.reset(false);    //前のジョブのファイルは結果として残す
+                }
+                results.add(runJob(jobs.get(i), driver, createDownloadListener(jobs.get(i))));
+            }
+        }
+        finally {
+            driver.setReusable(reusable);
+        }
+        return results;
+    }
+
+    /**
+     * ジョブ毎にブラウザコンテキストを作成し、threads件ずつ同時に実行する。結果はジョブの順に返す。
+     * @param jobs
+     * @param threads
+     * @return
+     */
+    protected List<JobResult> runConcurrently(List<Job> jobs, int threads){
+        logger.info("ジョブを{}件ずつブラウザコンテキストで同時に実行します。", threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<JobResult>> futures = new ArrayList<>();
+            for(Job job : jobs){
+                HttpFileDownloader.Listener listener = createDownloadListener(job);  //Listenerはジョブの順に作成する
+                futures.add(executor.submit(() -> runInContext(job, listener)));
+            }
+            List<JobResult> results = new ArrayList<>();
+            for(int i=0; i<jobs.size(); i++){
+                try {
+                    results.add(futures.get(i).get());
+                }
+                catch (ExecutionException e){
+                    results.add(new JobResult(jobs.get(i).operator(), STATUS_FAILED, 0, List.of(), List.of(), String.valueOf(e.getCause())));
+                }
+                catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("ジョブの実行が中断されました。", e);
+                }
+            }
+            return results;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected JobResult runInContext(Job job, HttpFileDownloader.Listener listener){
+        if(deadline.isExpired()){
+            return pendingResult(job);
+        }
+        BrowserContextDriver context;
+        try {
+            context = driver.newContext();
+        }
+        catch (RuntimeException e){
+            logger.warn("ブラウザコンテキストを作成できませんでした。operator:{} {}", job.operator(), e.getMessage());
+            return new JobResult(job.operator(), STATUS_FAILED, 0, List.of(), List.of(), String.valueOf(e.getMessage()));
+        }
+        try {
+            return runJob(job, context, listener);
+        }
+        finally {
+            context.quit();
+        }
+    }
+
+    protected HttpFileDownloader.Listener createDownloadListener(Job job){
+        return null==downloadListenerFactory ? null : downloadListenerFactory.apply(job);
+    }
+
+    protected JobResult runJob(Job job, WebSiteControlDriver driver, HttpFileDownloader.Listener listener){
+        long startNanos = System.nanoTime();
+        Set<String> before = listFileNames(driver);
+        Set<String> delivered = ConcurrentHashMap.newKeySet(); //書き出し先に送ってダウンロードフォルダから消したものも結果に含める
+        logger.info("ジョブを開始します。operator:{} parameters:{}", job.operator(), job.parameters());
+        String status = STATUS_SUCCESS;
+        String error = null;
+        List<String> pending = List.of();
+        AutoWebOperator operator = null;
+        try {
+            var factory = operators.get(job.operator());
+            if(null==factory){
+                throw new RuntimeException("オペレーター["+job.operator()+"]は登録されていません。");
+            }
+            operator = factory.apply(driver);
+            operator.setParameters(job.parameters());
+            operator.setDeadline(deadline);
+            operator.setOutputSink(outputSink);
+            operator.setDownloadListener(new HttpFileDownloader.Listener() {
+                @Override
+                public void onCompleted(HttpFileDownloader.DownloadResult result) {
+                    delivered.add(String.valueOf(result.path().getFileName()));
+                    if(null!=listener){
+                        listener.onCompleted(result);
+                    }
+                }
+
+                @Override
+                public void onFailed(String url, Path target, Throwable error) {
+                    if(null!=listener){
+                        listener.onFailed(url, target, error);
+                    }
+                }
+            });
+            operator.exec();
+        }
+        catch (DeadlineExceededException e){
+            pending = null==operator ? List.of() : operator.getPendingUnits();
+            logger.warn("実行の期限を過ぎたためジョブを打ち切りました。operator:{} 未完了:{}件", job.operator(), pending.size());
+            status = STATUS_PARTIAL;
+            error = String.valueOf(e.getMessage());
+        }
+        catch (RuntimeException e){
+            logger.warn("ジョブが失敗しました。operator:{} {}", job.operator(), e.getMessage());
+            status = STATUS_FAILED;
+            error = String.valueOf(e.getMessage());
+        }
+        Set<String> downloaded = new TreeSet<>(delivered);
+        listFileNames(driver).stream().filter(name -> !before.contains(name)).forEach(downloaded::add);
+        List<String> files = List.copyOf(downloaded);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-startNanos);
+        logger.info("ジョブが終了しました。operator:{} status:{} {}ms ファイル:{}件", job.operator(), status, elapsedMillis, files.size());
+        return new JobResult(job.operator(), status, elapsedMillis, files, pending, error);
+    }
+
+    protected JobResult pendingResult(Job job){
+        logger.info("実行の期限を過ぎたためジョブを始めません。operator:{}", job.operator());
+        return new JobResult(job.operator(), STATUS_PENDING, 0, List.of(), List.of(), "実行の期限を過ぎたため始めませんでした。");
+    }
+
+    protected static Set<String> listFileNames(WebSiteControlDriver driver){
+        File[] files = new File(driver.getDownloadFolderPath()).listFiles(file -> file.isFile() && !file.getName().startsWith("."));
+        Set<String> names = new HashSet<>();
+        for(File file : null==files ? new File[0] : files){
+            names.add(file.getName());
+        }
+        return names;
+    }
+
+    /**
+     * バッチ全体の状態を返す。
+     * @param results
+     * @return すべて成功した場合はSUCCESS、すべて失敗した場合はFAILED、それ以外(期限で打ち切ったものを含む)はPARTIAL
+     */
+    public static String getStatus(List<JobResult> results){
+        long succeeded = results.stream().filter(result -> STATUS_SUCCESS.equals(result.status())).count();
+        if(succeeded==results.size()){
+            return STATUS_SUCCESS;
+        }
+        long failed = results.stream().filter(result -> STATUS_FAILED.equals(result.status())).count();
+        return failed==results.size() ? STATUS_FAILED : STATUS_PARTIAL;
+    }
+}
@@ -0,0 +1,175 @@
+package greenflagproject.selenium.common;
+
+import org.openqa.selenium.devtools.DevTools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * WebSiteControlDriver.newContext()で作成した、ブラウザコンテキスト1つ分のWebSiteControlDriver。
+ * ブラウザのプロセスとWebDriverのセッションは共有元と同じで、Cookie・Storage・キャッシュ・ダウンロードフォルダは分かれている。
+ * AutoWebOperatorに渡すと、そのAutoWebOperatorの操作はこのコンテキストのウィンドウで行われる。
+ * <p>
+ * DevToolsのセッションは共有元のウィンドウに接続しているので、このコンテキストでは使わない。
+ * ダウンロードの完了はダウンロードフォルダのWatchServiceで検知し、リソースの制限はURLのパターンのみ行う。
+ */
+public class BrowserContextDriver extends WebSiteControlDriver {
+    private final static Logger logger = LoggerFactory.getLogger(BrowserContextDriver.class);
+
+    private final WebSiteControlDriver parent;
+    private final String contextId;
+    private final String contextHandle;
+    private boolean disposed=false;
+
+    BrowserContextDriver(WebSiteControlDriver parent, String contextId, String contextHandle, String downloadFolderPath){
+        super(parent, contextHandle, downloadFolderPath);
+        this.parent=parent;
+        this.contextId=contextId;
+        this.contextHandle=contextHandle;
+    }
+
+    public String getContextId(){
+        return contextId;
+    }
+
+    @Override
+    public Optional<DevTools> getDevTools() {
+        return Optional.empty();
+    }
+
+    @Override
+    public synchronized DownloadTracker getDownloadTracker(FileFilter fileFilter) {
+        if(null==downloadTracker){
+            DownloadTracker tracker = new DownloadTracker(Paths.get(downloadFolderPath), fileFilter);
+            try {
+                tracker.startWithWatchService();
+            }
+            catch (IOException e){
+                throw new RuntimeException("ダウンロードフォルダを監視できませんでした。", e);
+            }
+            downloadTracker=tracker;
+        }
+        return downloadTracker;
+    }
+
+    /**
+     * URLのパターンのみNetwork.setBlockedURLsで制限する。
+     * リソースの種類による制限(Fetch.requestPaused)は、イベントを受け取るDevToolsのセッションがないため行わない。
+     * @param policy
+     */
+    @Override
+    public synchronized void applyResourcePolicy(ResourcePolicy policy) {
+        resourcePolicy = policy;
+        executeCdpCommand("Network.enable", Map.of());
+        executeCdpCommand("Network.setBlockedURLs", Map.of("urls", policy.blockedUrlPatterns()));
+        if(policy.restrictsResourceTypes()){
+            logger.info("ブラウザコンテキストではリソースの種類による制限は行いません。");
+        }
+        logger.info("リソースの制限を設定しました[{}] 読み込まないURL:{}", contextId, policy.blockedUrlPatterns());
+    }
+
+    @Override
+    public boolean isHealthy() {
+        try {
+            return !disposed && null!=executeScript("return document.readyState;");
+        }
+        catch (RuntimeException e){
+            logger.warn("ブラウザコンテキストのヘルスチェックに失敗しました[{}] {}", contextId, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * このコンテキストのポップアップなどのウィンドウを閉じ、Cookie・Storageを消去する。
+     * 共有元や他のコンテキストには影響しない。
+     * @param clearDownloadFolder falseの場合、ダウンロードしたファイルは残す
+     */
+    @Override
+    public void reset(boolean clearDownloadFolder) {
+        guarded(() -> {
+            Map<String, Object> targets = executeCdpCommand("Target.getTargets", Map.of());
+            for(Object o : (List<?>) targets.getOrDefault("targetInfos", List.of())){
+                Map<?, ?> target = (Map<?, ?>) o;
+                if(contextId.equals(target.get("browserContextId")) && !contextHandle.endsWith(String.valueOf(target.get("targetId")))){
+                    executeCdpCommand("Target.closeTarget", Map.of("targetId", target.get("targetId")));
+                }
+            }
+            windowHandle = contextHandle;
+            sessionGuard.setCurrentHandle(null);   //閉じたウィンドウを選択していた場合に切り替えなおす
+            try {
+                executeScript("try{window.localStorage.clear();window.sessionStorage.clear();}catch(e){}");
+            }
+            catch (RuntimeException e){
+                logger.debug("Storageの消去に失敗しました。{}", e.getMessage());
+            }
+            executeCdpCommand("Network.clearBrowserCookies", Map.of());    //このコンテキストのCookieのみ消える
+            get("about:blank");
+            return null;
+        });
+        if(null!=downloadTracker){
+            downloadTracker.clear();
+        }
+        if(clearDownloadFolder) {
+            clearDownloadFolder();
+        }
+    }
+
+    /**
+     * 選択しているウィンドウを閉じる。コンテキストのウィンドウの場合はコンテキストを破棄する。
+     */
+    @Override
+    public void close() {
+        if(contextHandle.equals(windowHandle)){
+            quit();
+            return;
+        }
+        guarded(() -> {
+            super.close();
+            windowHandle = contextHandle;
+            sessionGuard.setCurrentHandle(null);
+            return null;
+        });
+    }
+
+    /**
+     * コンテキストを破棄する。ブラウザと共有元のセッションは終了しない。
+     */
+    @Override
+    public void quit() {
+        if(disposed){
+            return;
+        }
+        disposed=true;
+        if(null!=downloadTracker){
+            downloadTracker.close();
+            downloadTracker=null;
+        }
+        if(null!=metrics){
+            metrics.printSummary();
+        }
+        try {
+            parent.disposeContext(contextId);
+        }
+        catch (RuntimeException e){
+            logger.warn("ブラウザコンテキストを破棄できませんでした[{}] {}", contextId, e.getMessage());
+        }
+        finally {
+            sessionGuard.removeContextHandle(contextHandle);
+        }
+        logger.info("ブラウザコンテキストを破棄しました[{}]", contextId);
+    }
+
+    /**
+     * 共有元のセッションから作成する。
+     */
+    @Override
+    public synchronized BrowserContextDriver newContext() {
+        return parent.newContext();
+    }
+}
@@ -0,0 +1,29 @@
+package greenflagproject.selenium.common;
+
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpCookie;
+import java.util.List;
+
+/**
+ * ブラウザのセッション情報。
+ * HttpFileDownloaderに渡して、ログインが必要なファイルをブラウザを介さずにダウンロードするために使う。
+ * @param cookies
+ * @param userAgent ブラウザのUser-Agent
+ * @param referer ブラウザで表示していたURL
+ */
+public record BrowserSession(List<HttpCookie> cookies, String userAgent, String referer) {
+
+    /**
+     * Cookieを登録したCookieManagerを作成する。
+     * ダウンロード中にサーバーから返されたCookieもこのCookieManagerに保存される。
+     * @return
+     */
+    public CookieManager createCookieManager(){
+        CookieManager cookieManager = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+        for(HttpCookie cookie : cookies){
+            cookieManager.getCookieStore().add(null, cookie);
+        }
+        return cookieManager;
+    }
+}
@@ -0,0 +1,84 @@
+package greenflagproject.selenium.common;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ページから複数要素のテキスト・属性を1回のexecuteScriptでまとめて取り出す。
+ * findElements、getText、getAttributeを要素毎に呼ぶと、その都度WebDriverのHTTP通信が発生するので、要素数に比例して遅くなる。
+ */
+public class BulkExtractor {
+
+    /**
+     * arguments: using(css selector/xpath), value, itemSelector, fields
+     * テキストはWebElement.getText()に合わせて、innerTextの各行の前後の空白を除いたものにする。
+     * 属性はWebElement.getAttribute()に合わせて、プロパティがあればプロパティ(hrefなら絶対URL)を返す。
+     */
+    final static String EXTRACT_SCRIPT = """
+            var using=arguments[0], value=arguments[1], itemSelector=arguments[2], fields=arguments[3];
+            function roots(){
+              if(using==='xpath'){
+                var snapshot=document.evaluate(value, document, null, XPathResult.ORDERED_NODE_SNAPSHOT_TYPE, null), list=[];
+                for(var i=0; i<snapshot.snapshotLength; i++){ list.push(snapshot.snapshotItem(i)); }
+                return list;
+              }
+              return Array.from(document.querySelectorAll(value));
+            }
+            function text(e){
+              return (e.innerText||e.textContent||'').split('\\n').map(function(line){ return line.trim(); }).join('\\n').trim();
+            }
+            function read(e, attribute){
+              if(!attribute){ return text(e); }
+              var v=(attribute in e) ? e[attribute] : e.getAttribute(attribute);
+              return null==v ? null : String(v);
+            }
+            var result=[];
+            roots().forEach(function(root){
+              var items=itemSelector ? Array.from(root.querySelectorAll(itemSelector)) : [root];
+              items.forEach(function(item){
+                var record={};
+                fields.forEach(function(f){
+                  var targets=!f.selector ? [item] : (f.multiple ? Array.from(item.querySelectorAll(f.selector)) : [item.querySelector(f.selector)].filter(Boolean));
+                  record[f.name]=targets.map(function(t){ return read(t, f.attribute); });
+                });
+                result.push(record);
+              });
+            });
+            return result;
+            """;
+
+    protected final JavascriptExecutor executor;
+
+    public BulkExtractor(JavascriptExecutor executor){
+        this.executor=executor;
+    }
+
+    /**
+     * @param root 対象の範囲。一致するすべての要素が対象になる
+     * @param itemSelector rootの中で1件分となる要素のCSSセレクタ。nullの場合はroot自身が1件分になる
+     * @param fields 取り出す項目
+     * @return
+     */
+    public List<ExtractedItem> extract(By root, String itemSelector, List<ExtractField> fields){
+        By.Remotable.Parameters parameters = MutationObserverWait.toParameters(root);
+        if(null==parameters){
+            throw new IllegalArgumentException("CSSセレクタ・XPathに変換できないロケーターです。"+root);
+        }
+        Object result = executor.executeScript(EXTRACT_SCRIPT, parameters.using(), parameters.value(), itemSelector,
+                fields.stream().map(ExtractField::toScriptArgument).toList());
+        List<ExtractedItem> items = new ArrayList<>();
+        for(Object o : (List<?>) result){
+            Map<String, List<String>> values = new LinkedHashMap<>();
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()){
+                values.put(String.valueOf(entry.getKey()), ((List<?>) entry.getValue()).stream().map(v -> null==v ? null : String.valueOf(v)).toList());
+            }
+            items.add(new ExtractedItem(values));
+        }
+        return items;
+    }
+}
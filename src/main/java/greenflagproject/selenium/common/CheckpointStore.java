@@ -0,0 +1,280 @@
+package greenflagproject.selenium.common;
+
+import org.openqa.selenium.json.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AutoWebOperatorの処理の単位(ステップ、ダウンロード1件など)の完了を記録するチェックポイント。
+ * exec()のリトライや、失敗したジョブを次のinvocation(warm container)で再実行した場合に、完了済みの単位を飛ばせるようにする。
+ * <p>
+ * オペレーターのClassとジョブのパラメータ毎に1つのJSONファイルにする。並行ダウンロードの完了の度にファイル全体を書き直さないよう、
+ * 保存はSAVE_INTERVAL_MILLISに1回までとし、残りはflush()(exec()のリトライ時と終了時)で保存する。
+ * ファイルを記録した単位は、そのファイルが消えている(ダウンロードフォルダを空にした)場合は完了していないものとして扱う。
+ * 前回の実行のファイルが今回のダウンロードフォルダ(invocation毎のフォルダ)の外にある場合は、今回のフォルダにリンク(できない場合はコピー)してから完了とする。
+ * ジョブが成功したらdelete()で消し、一定時間更新されていないものは次にopen()した際に消す。
+ */
+public class CheckpointStore {
+    private final static Logger logger = LoggerFactory.getLogger(CheckpointStore.class);
+
+    /**
+     * チェックポイントを使うかの指定。
+     * デフォルトはtrue。
+     */
+    public final static String ENV_CHECKPOINT_ENABLED="CHECKPOINT_ENABLED";
+    public final static boolean DEFAULT_CHECKPOINT_ENABLED=true;
+
+    /**
+     * 失敗したジョブのチェックポイントを保持する時間(秒)。
+     * デフォルトは6時間(Lambdaの非同期呼び出しのリトライの最大の間隔)。
+     */
+    public final static String ENV_CHECKPOINT_TTL_SECOND="CHECKPOINT_TTL_SECOND";
+    public final static int DEFAULT_CHECKPOINT_TTL_SECOND=6*60*60;
+
+    final static String CHECKPOINT_FOLDER_NAME="AutoWebOperator-checkpoint";
+
+    /**
+     * チェックポイントのファイルを保存する最短の間隔(ms)
+     */
+    final static long SAVE_INTERVAL_MILLIS=1000;
+
+    /**
+     * 完了した単位
+     * @param name
+     * @param file 単位の成果物のファイル。ない場合はnull
+     * @param bytes fileのサイズ
+     * @param value 次回のために残す値(抽出した一覧など)。ない場合はnull
+     * @param completedMillis
+     */
+    public record Unit(String name, String file, long bytes, Object value, long completedMillis){}
+
+    /**
+     * オペレーターとジョブのパラメータのチェックポイントを開く。前回の記録があれば読み込む。
+     * @param operatorName
+     * @param parameters
+     * @return チェックポイントを使わない設定の場合はnull
+     */
+    public static CheckpointStore open(String operatorName, Map<String, Object> parameters){
+        if(!CommonUtility.getBooleanEnv(ENV_CHECKPOINT_ENABLED, DEFAULT_CHECKPOINT_ENABLED)){
+            return null;
+        }
+        Path folder = Paths.get(System.getProperty("java.io.tmpdir"), CHECKPOINT_FOLDER_NAME);
+        long ttlMillis = TimeUnit.SECONDS.toMillis(CommonUtility.getIntEnv(ENV_CHECKPOINT_TTL_SECOND, DEFAULT_CHECKPOINT_TTL_SECOND));
+        try {
+            Files.createDirectories(folder);
+            deleteExpired(folder, ttlMillis);
+            return new CheckpointStore(folder.resolve(toKey(operatorName, parameters)+".json"));
+        }
+        catch (IOException e){
+            logger.warn("チェックポイントを作成できませんでした。チェックポイントを使わずに実行します。{}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * オペレーターとパラメータ(トップレベルのキーの順序は問わない)のSHA-256。
+     */
+    static String toKey(String operatorName, Map<String, Object> parameters){
+        String source = operatorName+"\n"+new Json().toJson(new TreeMap<>(null==parameters ? Map.of() : parameters));
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        }
+        catch (NoSuchAlgorithmException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    static void deleteExpired(Path folder, long ttlMillis){
+        File[] files = folder.toFile().listFiles(file -> file.isFile() && file.getName().endsWith(".json"));
+        long now = System.currentTimeMillis();
+        for(File file : null==files ? new File[0] : files){
+            if(now-file.lastModified()>ttlMillis && file.delete()){
+                logger.debug("期限切れのチェックポイントを削除しました[{}]", file);
+            }
+        }
+    }
+
+    protected final Path file;
+    protected final Map<String, Unit> units = new LinkedHashMap<>();
+    protected Path outputFolder=null;
+    private final Json json = new Json();
+    private boolean dirty=false;
+    private long lastSaveMillis=0;
+
+    public CheckpointStore(Path file){
+        this.file = file;
+        load();
+        if(!units.isEmpty()){
+            logger.info("チェックポイントを読み込みました[{}] 完了済み:{}件", file.getFileName(), units.size());
+        }
+    }
+
+    /**
+     * 成果物のファイルを置くフォルダを設定する。ジョブの結果はこのフォルダのファイルから作られるので、
+     * 前回の実行のファイルが別のフォルダにある場合はisCompleted()でこのフォルダに置く。
+     * @param outputFolder nullの場合はファイルの場所を問わない
+     */
+    public synchronized void setOutputFolder(Path outputFolder){
+        this.outputFolder = null==outputFolder ? null : outputFolder.toAbsolutePath();
+    }
+
+    /**
+     * 単位が完了しているか。ファイルを記録した単位は、ファイルが同じサイズで残っている場合のみ完了とする。
+     * ファイルが成果物のフォルダの外にある場合は、フォルダに置けた場合のみ完了とする。
+     * @param name
+     * @return
+     */
+    public synchronized boolean isCompleted(String name){
+        Unit unit = units.get(name);
+        if(null==unit){
+            return false;
+        }
+        if(null!=unit.file()){
+            File output = new File(unit.file());
+            if(!output.isFile() || output.length()!=unit.bytes()){
+                units.remove(name);
+                return false;
+            }
+            if(null!=outputFolder && !outputFolder.equals(output.toPath().toAbsolutePath().getParent())){
+                Path restored = outputFolder.resolve(output.getName());
+                try {
+                    DownloadCache.linkOrCopy(output.toPath(), restored);
+                }
+                catch (IOException e){
+                    logger.warn("前回の実行のファイルをダウンロードフォルダに置けませんでした。やり直します[{}] {}", output, e.getMessage());
+                    units.remove(name);
+                    return false;
+                }
+                logger.info("前回の実行のファイルをダウンロードフォルダに置きました[{}]", restored);
+                put(new Unit(name, restored.toString(), unit.bytes(), unit.value(), unit.completedMillis()));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 完了した単位に記録した値を返す。
+     * @param name
+     * @return 完了していない、もしくは値を記録していない場合はnull
+     */
+    public synchronized Object getValue(String name){
+        return isCompleted(name) ? units.get(name).value() : null;
+    }
+
+    public void markCompleted(String name){
+        put(new Unit(name, null, 0, null, System.currentTimeMillis()));
+    }
+
+    /**
+     * 単位の完了を成果物のファイルと一緒に記録する。
+     * @param name
+     * @param output
+     */
+    public void markCompleted(String name, Path output){
+        File outputFile = output.toAbsolutePath().toFile();
+        put(new Unit(name, outputFile.toString(), outputFile.length(), null, System.currentTimeMillis()));
+    }
+
+    /**
+     * 単位の完了を値(JSONにできるもの)と一緒に記録する。
+     * @param name
+     * @param value
+     */
+    public void markCompleted(String name, Object value){
+        put(new Unit(name, null, 0, value, System.currentTimeMillis()));
+    }
+
+    protected synchronized void put(Unit unit){
+        units.put(unit.name(), unit);
+        saveIfDue();
+    }
+
+    /**
+     * 保存していない記録があれば保存する。
+     */
+    public synchronized void flush(){
+        if(dirty){
+            save();
+        }
+    }
+
+    /**
+     * 前回の保存からSAVE_INTERVAL_MILLIS以上経っていれば保存する。それ以外は次の保存かflush()まで保留する。
+     */
+    private void saveIfDue(){
+        dirty=true;
+        if(System.currentTimeMillis()-lastSaveMillis>=SAVE_INTERVAL_MILLIS){
+            save();
+        }
+    }
+
+    public synchronized int size(){
+        return units.size();
+    }
+
+    /**
+     * 記録を消す。ジョブが最後まで成功した場合に呼び出す。
+     */
+    public synchronized void delete(){
+        units.clear();
+        dirty=false;
+        try {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e){
+            logger.warn("チェックポイントを削除できませんでした[{}] {}", file, e.getMessage());
+        }
+    }
+
+    private void load(){
+        if(!Files.exists(file)){
+            return;
+        }
+        try {
+            Map<String, Object> map = json.toType(Files.readString(file), Json.MAP_TYPE);
+            for(Object o : map.values()){
+                Map<?, ?> m = (Map<?, ?>) o;
+                Unit unit = new Unit((String) m.get("name"), (String) m.get("file"), ((Number) m.get("bytes")).longValue(),
+                        m.get("value"), ((Number) m.get("completedMillis")).longValue());
+                units.put(unit.name(), unit);
+            }
+        }
+        catch (IOException | RuntimeException e){
+            logger.warn("チェックポイントを読み込めませんでした。最初から実行します。{}", e.getMessage());
+            units.clear();
+        }
+    }
+
+    private void save(){
+        Map<String, Object> map = new LinkedHashMap<>();
+        for(Unit unit : units.values()){
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("name", unit.name());
+            m.put("file", unit.file());
+            m.put("bytes", unit.bytes());
+            m.put("value", unit.value());
+            m.put("completedMillis", unit.completedMillis());
+            map.put(unit.name(), m);
+        }
+        try {
+            Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+            Files.writeString(tmp, json.toJson(map));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty=false;
+        }
+        catch (IOException e){
+            logger.warn("チェックポイントを保存できませんでした。{}", e.getMessage());
+        }
+        lastSaveMillis=System.currentTimeMillis();
+    }
+}
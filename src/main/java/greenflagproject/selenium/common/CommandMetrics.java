@@ -0,0 +1,180 @@
+package greenflagproject.selenium.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * WebDriverのコマンド毎の実行回数、レイテンシ(p50/p90/p99/max)、エラー回数を記録する。
+ * コマンドと、呼び出し元のAutoWebOperatorのメソッド(ステップ)の組み合わせで集計する。
+ * レイテンシは対数のバケット(2のべき乗毎に8分割、誤差12.5%以内)で数えるので、記録のコストは小さい。
+ */
+public class CommandMetrics {
+    private final static Logger logger = LoggerFactory.getLogger(CommandMetrics.class);
+
+    /**
+     * WebDriverのコマンドの計測を行うかの指定。
+     * デフォルトはfalse。
+     */
+    public final static String ENV_COMMAND_METRICS_ENABLED="COMMAND_METRICS_ENABLED";
+    public final static boolean DEFAULT_COMMAND_METRICS_ENABLED=false;
+
+    private final static int SUB_BUCKET_BITS=3;
+    private final static int SUB_BUCKETS=1<<SUB_BUCKET_BITS;
+    private final static int BUCKETS=(64-SUB_BUCKET_BITS)*SUB_BUCKETS;
+    private final static StackWalker STACK_WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    /**
+     * 集計結果
+     * @param command
+     * @param step 呼び出し元のAutoWebOperatorのメソッド
+     * @param count
+     * @param errors
+     * @param p50Micros
+     * @param p90Micros
+     * @param p99Micros
+     * @param maxMicros
+     * @param totalMicros
+     */
+    public record Summary(String command, String step, long count, long errors, long p50Micros, long p90Micros, long p99Micros, long maxMicros, long totalMicros){}
+
+    private record Key(String command, String step){}
+
+    private static class Stats {
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder totalMicros = new LongAdder();
+        final AtomicLong maxMicros = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long micros, boolean error){
+            count.increment();
+            if(error){
+                errors.increment();
+            }
+            totalMicros.add(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+            buckets.incrementAndGet(bucketIndex(micros));
+        }
+
+        long percentile(double p){
+            long total = count.sum();
+            long threshold = (long) Math.ceil(total*p);
+            long seen = 0;
+            for(int i=0; i<BUCKETS; i++){
+                seen += buckets.get(i);
+                if(0<seen && threshold<=seen){
+                    return Math.min(bucketUpperBound(i), maxMicros.get());
+                }
+            }
+            return maxMicros.get();
+        }
+    }
+
+    private final Map<Key, Stats> stats = new ConcurrentHashMap<>();
+
+    public static boolean isEnabled(){
+        return CommonUtility.getBooleanEnv(ENV_COMMAND_METRICS_ENABLED, DEFAULT_COMMAND_METRICS_ENABLED);
+    }
+
+    /**
+     * actionを実行し、その時間を記録する。
+     * @param command
+     * @param action
+     * @return actionの戻り値
+     * @param <T>
+     */
+    public <T> T record(String command, Supplier<T> action){
+        String step = findStep();
+        long startNanos = System.nanoTime();
+        boolean error = true;
+        try {
+            T result = action.get();
+            error = false;
+            return result;
+        }
+        finally {
+            stats.computeIfAbsent(new Key(command, step), key -> new Stats()).record((System.nanoTime()-startNanos)/1000, error);
+        }
+    }
+
+    /**
+     * 呼び出し元のAutoWebOperatorのメソッドを探す。
+     * 継承先(KanpoWebOperationAppなど)のメソッドを優先し、なければAutoWebOperatorのメソッドにする。
+     */
+    protected String findStep(){
+        return STACK_WALKER.walk(frames -> {
+            String baseStep = null;
+            for(var frame : (Iterable<StackWalker.StackFrame>) frames::iterator){
+                Class<?> declaringClass = frame.getDeclaringClass();
+                if(!AutoWebOperator.class.isAssignableFrom(declaringClass)){
+                    continue;
+                }
+                String step = declaringClass.getSimpleName()+"."+frame.getMethodName();
+                if(AutoWebOperator.class!=declaringClass){
+                    return step;
+                }
+                if(null==baseStep){
+                    baseStep = step;
+                }
+            }
+            return null==baseStep ? "-" : baseStep;
+        });
+    }
+
+    public List<Summary> getSummaries(){
+        List<Summary> summaries = new ArrayList<>();
+        stats.forEach((key, s) -> summaries.add(new Summary(key.command(), key.step(), s.count.sum(), s.errors.sum(),
+                s.percentile(0.5), s.percentile(0.9), s.percentile(0.99), s.maxMicros.get(), s.totalMicros.sum())));
+        summaries.sort(Comparator.comparingLong(Summary::totalMicros).reversed());
+        return summaries;
+    }
+
+    /**
+     * 合計時間の長い順に集計結果をログに出力する。
+     */
+    public void printSummary(){
+        List<Summary> summaries = getSummaries();
+        if(summaries.isEmpty()){
+            return;
+        }
+        StringBuilder builder = new StringBuilder("WebDriverコマンドの計測結果\n");
+        builder.append(String.format("%-24s %-40s %7s %6s %10s %10s %10s %10s %12s%n", "command", "step", "count", "errors", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)", "total(ms)"));
+        for(Summary summary : summaries){
+            builder.append(String.format("%-24s %-40s %7d %6d %10.1f %10.1f %10.1f %10.1f %12.1f%n", summary.command(), summary.step(), summary.count(), summary.errors(),
+                    summary.p50Micros()/1000.0, summary.p90Micros()/1000.0, summary.p99Micros()/1000.0, summary.maxMicros()/1000.0, summary.totalMicros()/1000.0));
+        }
+        logger.info(builder.toString());
+    }
+
+    public void clear(){
+        stats.clear();
+    }
+
+    static int bucketIndex(long value){
+        if(value<SUB_BUCKETS){
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63-Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value>>>(exponent-SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+        return (exponent-SUB_BUCKET_BITS+1)*SUB_BUCKETS+subBucket;
+    }
+
+    static long bucketUpperBound(int index){
+        if(index<SUB_BUCKETS){
+            return index;
+        }
+        int exponent = index/SUB_BUCKETS+SUB_BUCKET_BITS-1;
+        long subBucket = index%SUB_BUCKETS;
+        return ((SUB_BUCKETS+subBucket+1)<<(exponent-SUB_BUCKET_BITS))-1;
+    }
+}
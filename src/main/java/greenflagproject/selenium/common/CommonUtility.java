@@ -40,6 +40,25 @@ public class CommonUtility {
         return defaultValue;
     }
 
+    /**
+     * 設定がない、もしくは数値でない場合はdefaultValueを返す
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public static int getIntEnv(String key, int defaultValue){
+        String s =System.getenv(key);
+        if(null!=s && !s.isEmpty()){
+            try {
+                return Integer.parseInt(s);
+            }
+            catch (NumberFormatException e){
+                logger.warn("Env {}[{}]は数値ではありません。", key, s);
+            }
+        }
+        return defaultValue;
+    }
+
     public static boolean checkExists(String path, boolean throwRuntimeException){
     return checkExists(new File(path), throwRuntimeException);
 }
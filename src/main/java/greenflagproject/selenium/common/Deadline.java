@@ -0,0 +1,111 @@
+package greenflagproject.selenium.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 実行の期限。Lambdaの場合はContext.getRemainingTimeInMillis()から安全マージンを引いた時刻にする。
+ * 待ち(要素の表示、ダウンロード)はcap()で期限までの残り時間に抑え、新しい処理はisExpired()を確認してから始める。
+ * 安全マージンは、期限を過ぎてから結果を返し、ブラウザを終了するための時間。
+ * タイムアウトが短いLambdaで処理を始める前に期限切れにならないよう、安全マージンは残り時間の1/MAX_SAFETY_MARGIN_DIVISORまでに抑える。
+ */
+public class Deadline {
+    private final static Logger logger = LoggerFactory.getLogger(Deadline.class);
+
+    /**
+     * 期限から差し引く安全マージン(秒)。
+     * デフォルトは30秒。
+     */
+    public final static String ENV_DEADLINE_SAFETY_MARGIN_SECOND="DEADLINE_SAFETY_MARGIN_SECOND";
+    public final static int DEFAULT_DEADLINE_SAFETY_MARGIN_SECOND=30;
+
+    /**
+     * 安全マージンの上限は残り時間の1/10
+     */
+    final static long MAX_SAFETY_MARGIN_DIVISOR=10;
+
+    /**
+     * 期限なし。
+     */
+    public final static Deadline NONE = new Deadline(0, true);
+
+    /**
+     * 残り時間から環境変数の安全マージンを引いた期限を作る。
+     * @param remainingMillis 残り時間(ms)。Lambdaの場合はContext.getRemainingTimeInMillis()
+     * @return
+     */
+    public static Deadline after(long remainingMillis){
+        return after(remainingMillis, TimeUnit.SECONDS.toMillis(CommonUtility.getIntEnv(ENV_DEADLINE_SAFETY_MARGIN_SECOND, DEFAULT_DEADLINE_SAFETY_MARGIN_SECOND)));
+    }
+
+    /**
+     * @param remainingMillis 残り時間(ms)
+     * @param safetyMarginMillis 安全マージン(ms)。残り時間の1/10を超える分は使わない
+     * @return
+     */
+    public static Deadline after(long remainingMillis, long safetyMarginMillis){
+        long marginMillis = Math.min(Math.max(0, safetyMarginMillis), Math.max(0, remainingMillis)/MAX_SAFETY_MARGIN_DIVISOR);
+        if(safetyMarginMillis>=remainingMillis){
+            logger.warn("安全マージン({}ms)が残り時間({}ms)以上のため、残り時間の1/{}({}ms)にします。{}を見直してください。",
+                    safetyMarginMillis, remainingMillis, MAX_SAFETY_MARGIN_DIVISOR, marginMillis, ENV_DEADLINE_SAFETY_MARGIN_SECOND);
+        }
+        long millis = Math.max(0, remainingMillis-marginMillis);
+        return new Deadline(System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(millis), false);
+    }
+
+    private final long deadlineNanos;
+    private final boolean unbounded;
+
+    private Deadline(long deadlineNanos, boolean unbounded){
+        this.deadlineNanos = deadlineNanos;
+        this.unbounded = unbounded;
+    }
+
+    public boolean isUnbounded(){
+        return unbounded;
+    }
+
+    /**
+     * @return 期限までの残り時間(ms)。期限なしの場合はLong.MAX_VALUE
+     */
+    public long remainingMillis(){
+        if(unbounded){
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos-System.nanoTime()));
+    }
+
+    public boolean isExpired(){
+        return !unbounded && 0>=deadlineNanos-System.nanoTime();
+    }
+
+    /**
+     * 待ち時間を期限までの残り時間に抑える。
+     * @param budget 本来の待ち時間
+     * @return
+     */
+    public Duration cap(Duration budget){
+        if(unbounded){
+            return budget;
+        }
+        return Duration.ofMillis(Math.min(budget.toMillis(), remainingMillis()));
+    }
+
+    /**
+     * 期限を過ぎていたらDeadlineExceededExceptionを投げる。新しい処理を始める前に呼び出す。
+     * @param action 始めようとしている処理(例外のメッセージに使う)
+     */
+    public void check(String action){
+        if(isExpired()){
+            throw new DeadlineExceededException("実行の期限を過ぎたため["+action+"]を打ち切りました。");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return unbounded ? "Deadline[なし]" : "Deadline[残り"+remainingMillis()+"ms]";
+    }
+}
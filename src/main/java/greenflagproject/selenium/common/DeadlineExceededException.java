@@ -0,0 +1,17 @@
+package greenflagproject.selenium.common;
+
+/**
+ * 実行の期限(Deadline)を過ぎたため、処理を打ち切った場合の例外。
+ * リトライしても期限内に終わらないので、AutoWebOperator.exec()はリトライしない。
+ */
+public class DeadlineExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String message){
+        super(message);
+    }
+
+    public DeadlineExceededException(String message, Throwable cause){
+        super(message, cause);
+    }
+}
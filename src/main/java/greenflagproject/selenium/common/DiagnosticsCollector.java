@@ -0,0 +1,262 @@
+package greenflagproject.selenium.common;
+
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.json.Json;
+import org.openqa.selenium.logging.LogEntry;
+import org.openqa.selenium.logging.LogType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 失敗時の調査用のスナップショット(URL、タイトル、先頭を切り詰めたDOM、スクリーンショット、コンソールログ、例外)を作業フォルダに保存する。
+ * ページ全体のテキストをログに出力すると、大きなページでは数秒・数MBかかるので、ブラウザから取り出す量を制限し、
+ * zipへの圧縮と書き込みはバックグラウンドのスレッドで行う(呼び出し元はブラウザからの取り出しの時間しか待たない)。
+ * 1回の実行(AutoWebOperator毎)で保存する件数とサイズに上限を設け、超えた分は保存しない。
+ */
+public class DiagnosticsCollector {
+    private final static Logger logger = LoggerFactory.getLogger(DiagnosticsCollector.class);
+
+    /**
+     * 失敗時のスナップショットを保存するかの指定。
+     * デフォルトはtrue。
+     */
+    public final static String ENV_DIAGNOSTICS_ENABLED="DIAGNOSTICS_ENABLED";
+    public final static boolean DEFAULT_DIAGNOSTICS_ENABLED=true;
+
+    /**
+     * 1回の実行で保存するスナップショットの件数の上限。
+     * デフォルトは5件。
+     */
+    public final static String ENV_DIAGNOSTICS_MAX_COUNT="DIAGNOSTICS_MAX_COUNT";
+    public final static int DEFAULT_DIAGNOSTICS_MAX_COUNT=5;
+
+    /**
+     * 1回の実行で保存するスナップショット(圧縮後)の合計サイズの上限(KB)。
+     * デフォルトは2048KB。
+     */
+    public final static String ENV_DIAGNOSTICS_MAX_KB="DIAGNOSTICS_MAX_KB";
+    public final static int DEFAULT_DIAGNOSTICS_MAX_KB=2048;
+
+    /**
+     * ブラウザから取り出すDOM(outerHTML)の文字数の上限。
+     * デフォルトは262144文字。
+     */
+    public final static String ENV_DIAGNOSTICS_DOM_MAX_CHARS="DIAGNOSTICS_DOM_MAX_CHARS";
+    public final static int DEFAULT_DIAGNOSTICS_DOM_MAX_CHARS=256*1024;
+
+    final static String DIAGNOSTICS_FOLDER_NAME="diagnostics";
+    final static int MAX_LOG_ENTRIES=200;
+    final static int MAX_LOG_MESSAGE_LENGTH=2000;
+    final static int MAX_STACK_TRACE_LENGTH=16*1024;
+
+    private final static DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    /**
+     * 圧縮と書き込みを行うスレッド。全てのDiagnosticsCollectorで共有する。
+     */
+    private final static ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "diagnostics-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * ブラウザから取り出したスナップショット
+     * @param reason 保存した理由(処理の名前など)
+     * @param url
+     * @param title
+     * @param dom 先頭から上限までのDOM
+     * @param domTruncated DOMを切り詰めたか
+     * @param screenshot PNG。取得できなかった場合はnull
+     * @param consoleLog
+     * @param stackTrace 例外がない場合はnull
+     */
+    public record Snapshot(String reason, String url, String title, String dom, boolean domTruncated, byte[] screenshot, List<String> consoleLog, String stackTrace){}
+
+    /**
+     * @return 保存しない設定の場合はnull
+     */
+    public static DiagnosticsCollector fromEnv(){
+        if(!CommonUtility.getBooleanEnv(ENV_DIAGNOSTICS_ENABLED, DEFAULT_DIAGNOSTICS_ENABLED)){
+            return null;
+        }
+        return new DiagnosticsCollector(
+                CommonUtility.getIntEnv(ENV_DIAGNOSTICS_MAX_COUNT, DEFAULT_DIAGNOSTICS_MAX_COUNT),
+                CommonUtility.getIntEnv(ENV_DIAGNOSTICS_MAX_KB, DEFAULT_DIAGNOSTICS_MAX_KB)*1024L,
+                CommonUtility.getIntEnv(ENV_DIAGNOSTICS_DOM_MAX_CHARS, DEFAULT_DIAGNOSTICS_DOM_MAX_CHARS));
+    }
+
+    protected final int maxCount;
+    protected final long maxBytes;
+    protected final int domMaxChars;
+    protected final AtomicInteger captureCount = new AtomicInteger(0);
+    protected final AtomicLong writtenBytes = new AtomicLong(0);
+    protected final List<Path> files = new ArrayList<>();
+
+    public DiagnosticsCollector(int maxCount, long maxBytes, int domMaxChars){
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.domMaxChars = domMaxChars;
+    }
+
+    /**
+     * ブラウザの現在のページのスナップショットを取り、作業フォルダのdiagnosticsフォルダにzipで保存する。
+     * 件数・サイズの上限に達している場合は何もしない。ブラウザの操作に失敗しても例外は投げない(失敗時の処理の邪魔をしない)。
+     * @param driver
+     * @param folder 保存先のフォルダ
+     * @param reason 保存した理由(処理の名前など)
+     * @param exception 原因の例外。ない場合はnull
+     */
+    public void capture(WebSiteControlDriver driver, Path folder, String reason, Throwable exception){
+        if(writtenBytes.get()>=maxBytes){
+            logger.debug("スナップショットの合計サイズの上限に達したため保存しません。{}", reason);
+            return;
+        }
+        int number = captureCount.incrementAndGet();
+        if(number>maxCount){
+            logger.debug("スナップショットの件数の上限に達したため保存しません。{}", reason);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        Snapshot snapshot = takeSnapshot(driver, reason, exception);
+        logger.info("スナップショットを取得しました[{}] URL[{}] TITLE[{}] {}ms", reason, snapshot.url(), snapshot.title(), (System.nanoTime()-startNanos)/1_000_000);
+        String fileName = String.format("%02d-%s-%s.zip", number, LocalDateTime.now().format(FILE_TIME), reason.replaceAll("[^A-Za-z0-9-]", "_"));
+        writer.execute(() -> write(snapshot, folder.resolve(fileName)));
+    }
+
+    protected Snapshot takeSnapshot(WebSiteControlDriver driver, String reason, Throwable exception){
+        String url = attempt(driver::getCurrentUrl, "");
+        String title = attempt(driver::getTitle, "");
+        String dom = "";
+        boolean domTruncated = false;
+        Object result = attempt(() -> driver.executeScript(   //全体を転送しないように、ブラウザ側で切り詰める
+                "var html=document.documentElement?document.documentElement.outerHTML:'';return [html.length, html.substring(0, arguments[0])];", domMaxChars), null);
+        if(result instanceof List<?> list && 2==list.size()){
+            dom = String.valueOf(list.get(1));
+            domTruncated = ((Number) list.get(0)).longValue()>dom.length();
+        }
+        byte[] screenshot = attempt(() -> driver.getScreenshotAs(OutputType.BYTES), null);
+        List<String> consoleLog = attempt(() -> {
+            List<String> lines = new ArrayList<>();
+            List<LogEntry> entries = driver.manage().logs().get(LogType.BROWSER).getAll();
+            for(LogEntry entry : entries.subList(Math.max(0, entries.size()-MAX_LOG_ENTRIES), entries.size())){
+                lines.add(truncate(entry.getTimestamp()+" "+entry.getLevel()+" "+entry.getMessage(), MAX_LOG_MESSAGE_LENGTH));
+            }
+            return lines;
+        }, List.of());
+        String stackTrace = null;
+        if(null!=exception){
+            StringWriter stringWriter = new StringWriter();
+            exception.printStackTrace(new PrintWriter(stringWriter));
+            stackTrace = truncate(stringWriter.toString(), MAX_STACK_TRACE_LENGTH);
+        }
+        return new Snapshot(reason, url, title, dom, domTruncated, screenshot, consoleLog, stackTrace);
+    }
+
+    /**
+     * スナップショットをzipにして保存する。残りのサイズに収まらない場合はスクリーンショットを除き、それでも収まらない場合は保存しない。
+     * @param snapshot
+     * @param file
+     */
+    protected void write(Snapshot snapshot, Path file){
+        try {
+            byte[] zip = toZip(snapshot, true);
+            long remaining = maxBytes-writtenBytes.get();
+            if(zip.length>remaining && null!=snapshot.screenshot()){
+                zip = toZip(snapshot, false);
+            }
+            if(zip.length>remaining){
+                logger.info("スナップショットが合計サイズの上限を超えるため保存しません[{}] {}bytes", snapshot.reason(), zip.length);
+                return;
+            }
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+            Files.write(tmp, zip);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writtenBytes.addAndGet(zip.length);
+            synchronized (files){
+                files.add(file);
+            }
+            logger.info("スナップショットを保存しました[{}] {}bytes", file, zip.length);
+        }
+        catch (IOException | RuntimeException e){
+            logger.warn("スナップショットを保存できませんでした[{}] {}", file, e.getMessage());
+        }
+    }
+
+    protected static byte[] toZip(Snapshot snapshot, boolean withScreenshot) throws IOException {
+        Map<String, Object> meta = new LinkedHashMap<>();
+        meta.put("reason", snapshot.reason());
+        meta.put("url", snapshot.url());
+        meta.put("title", snapshot.title());
+        meta.put("domTruncated", snapshot.domTruncated());
+        meta.put("screenshot", withScreenshot && null!=snapshot.screenshot());
+        meta.put("capturedAt", LocalDateTime.now().toString());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(output)) {
+            putEntry(zip, "meta.json", new Json().toJson(meta).getBytes(StandardCharsets.UTF_8));
+            putEntry(zip, "dom.html", snapshot.dom().getBytes(StandardCharsets.UTF_8));
+            putEntry(zip, "console.log", String.join("\n", snapshot.consoleLog()).getBytes(StandardCharsets.UTF_8));
+            if(null!=snapshot.stackTrace()){
+                putEntry(zip, "exception.txt", snapshot.stackTrace().getBytes(StandardCharsets.UTF_8));
+            }
+            if(withScreenshot && null!=snapshot.screenshot()){
+                putEntry(zip, "screenshot.png", snapshot.screenshot());
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private static void putEntry(ZipOutputStream zip, String name, byte[] data) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    /**
+     * 保存したスナップショットのファイル(書き込みが終わったもの)
+     * @return
+     */
+    public List<Path> getFiles(){
+        synchronized (files){
+            return List.copyOf(files);
+        }
+    }
+
+    static String truncate(String s, int maxLength){
+        return s.length()<=maxLength ? s : s.substring(0, maxLength)+"...(truncated)";
+    }
+
+    private static <T> T attempt(Supplier<T> action, T defaultValue){
+        try {
+            T value = action.get();
+            return null==value ? defaultValue : value;
+        }
+        catch (RuntimeException e){
+            logger.debug("スナップショットの取得に失敗しました。{}", e.getMessage());
+            return defaultValue;
+        }
+    }
+}
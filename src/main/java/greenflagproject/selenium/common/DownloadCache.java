@@ -0,0 +1,264 @@
+package greenflagproject.selenium.common;
+
+import org.openqa.selenium.json.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * HttpFileDownloaderのダウンロードキャッシュ。
+ * URL毎にETag、Last-Modified、サイズ、SHA-256をindex.jsonに記録し、ファイルの中身はSHA-256の名前でblobsフォルダに1つだけ保存する。
+ * 次回のダウンロードでは条件付きGET(If-None-Match/If-Modified-Since)を行い、304の場合はblobから取り出す。
+ * 保存先のファイルはblobへのハードリンクにするので、同じPDFを別名で保存してもディスクは1ファイル分しか使わない。
+ * キャッシュの合計サイズは/tmp領域の一定割合までとし、超えた場合は最後に使われた日時が古いものから削除する。
+ * <p>
+ * index.jsonは登録の度には書き込まず、SAVE_INTERVAL_MILLISに1回までとし、残りはflush()(HttpFileDownloaderのawaitAll()/close()、終了時)で書き込む。
+ * 並行ダウンロードの度にindex全体を書き直すと、件数の2乗のI/Oをキャッシュのロックを持ったまま行うことになるため。
+ */
+public class DownloadCache {
+    private final static Logger logger = LoggerFactory.getLogger(DownloadCache.class);
+
+    /**
+     * ダウンロードキャッシュを使うかの指定。
+     * デフォルトはtrue。
+     */
+    public final static String ENV_DOWNLOAD_CACHE_ENABLED="DOWNLOAD_CACHE_ENABLED";
+    public final static boolean DEFAULT_DOWNLOAD_CACHE_ENABLED=true;
+
+    /**
+     * キャッシュに使う/tmp(java.io.tmpdir)領域の割合(%)。
+     * デフォルトは25%。
+     */
+    public final static String ENV_DOWNLOAD_CACHE_MAX_TMP_PERCENT="DOWNLOAD_CACHE_MAX_TMP_PERCENT";
+    public final static int DEFAULT_DOWNLOAD_CACHE_MAX_TMP_PERCENT=25;
+
+    final static String CACHE_FOLDER_NAME="AutoWebOperator-cache";
+
+    /**
+     * index.jsonを書き込む最短の間隔(ms)
+     */
+    final static long SAVE_INTERVAL_MILLIS=1000;
+
+    /**
+     * キャッシュの1エントリ
+     * @param url
+     * @param etag
+     * @param lastModified
+     * @param size
+     * @param sha256 blobのファイル名
+     * @param lastAccessMillis LRUで削除する際の基準
+     */
+    public record Entry(String url, String etag, String lastModified, long size, String sha256, long lastAccessMillis){
+        public boolean hasValidator(){
+            return (null!=etag && !etag.isEmpty()) || (null!=lastModified && !lastModified.isEmpty());
+        }
+        Entry touch(){
+            return new Entry(url, etag, lastModified, size, sha256, System.currentTimeMillis());
+        }
+    }
+
+    private static DownloadCache defaultCache=null;
+
+    /**
+     * java.io.tmpdirに作るキャッシュを返す。warm containerでは前回のinvocationのキャッシュを引き継ぐ。
+     * @return キャッシュを使わない設定の場合はnull
+     */
+    public static synchronized DownloadCache getDefault(){
+        if(!CommonUtility.getBooleanEnv(ENV_DOWNLOAD_CACHE_ENABLED, DEFAULT_DOWNLOAD_CACHE_ENABLED)){
+            return null;
+        }
+        if(null==defaultCache){
+            Path folder = Paths.get(System.getProperty("java.io.tmpdir"), CACHE_FOLDER_NAME);
+            int percent = CommonUtility.getIntEnv(ENV_DOWNLOAD_CACHE_MAX_TMP_PERCENT, DEFAULT_DOWNLOAD_CACHE_MAX_TMP_PERCENT);
+            try {
+                Files.createDirectories(folder);
+                long tmpSpace = Files.getFileStore(folder).getTotalSpace();
+                defaultCache = new DownloadCache(folder, tmpSpace/100*percent);
+                Runtime.getRuntime().addShutdownHook(new Thread(defaultCache::flush));    //書き込んでいない登録を残す
+            }
+            catch (IOException e){
+                logger.warn("ダウンロードキャッシュを作成できませんでした。キャッシュを使わずにダウンロードします。{}", e.getMessage());
+                return null;
+            }
+        }
+        return defaultCache;
+    }
+
+    protected final Path blobFolder;
+    protected final Path indexFile;
+    protected final long maxBytes;
+    protected final Map<String, Entry> index = new HashMap<>();
+    private final Json json = new Json();
+    private boolean dirty=false;
+    private long lastSaveMillis=0;
+
+    public DownloadCache(Path cacheFolder, long maxBytes) throws IOException {
+        this.blobFolder = cacheFolder.resolve("blobs");
+        this.indexFile = cacheFolder.resolve("index.json");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(blobFolder);
+        load();
+        logger.info("ダウンロードキャッシュ[{}] {}件 上限:{}bytes", cacheFolder, index.size(), maxBytes);
+    }
+
+    /**
+     * URLのキャッシュを返す。blobが消えている場合はエントリも削除する。
+     * @param url
+     * @return
+     */
+    public synchronized Entry lookup(String url){
+        Entry entry = index.get(url);
+        if(null==entry){
+            return null;
+        }
+        if(!Files.exists(blobFolder.resolve(entry.sha256()))){
+            index.remove(url);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * キャッシュしているファイルを保存先に置く。
+     * @param entry
+     * @param target
+     * @throws IOException
+     */
+    public synchronized void materialize(Entry entry, Path target) throws IOException {
+        linkOrCopy(blobFolder.resolve(entry.sha256()), target);
+        index.put(entry.url(), entry.touch());
+        saveIfDue();
+    }
+
+    /**
+     * ダウンロードしたファイルをキャッシュに登録する。
+     * 同じ内容のblobが既にある場合は、保存先のファイルをそのblobへのハードリンクに置き換える。
+     * @param url
+     * @param etag
+     * @param lastModified
+     * @param file ダウンロードしたファイル
+     * @param sha256
+     * @throws IOException
+     */
+    public synchronized void store(String url, String etag, String lastModified, Path file, String sha256) throws IOException {
+        Path blob = blobFolder.resolve(sha256);
+        if(Files.exists(blob)){
+            Path tmp = file.resolveSibling("."+file.getFileName()+".dedup");
+            linkOrCopy(blob, tmp);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        else {
+            linkOrCopy(file, blob);
+        }
+        index.put(url, new Entry(url, etag, lastModified, Files.size(blob), sha256, System.currentTimeMillis()));
+        evict();
+        saveIfDue();
+    }
+
+    /**
+     * 合計サイズが上限を超えている場合、最後に使われた日時が古いblobから削除する。
+     */
+    protected void evict(){
+        Map<String, Long> blobLastAccess = new HashMap<>();
+        Map<String, Long> blobSize = new HashMap<>();
+        for(Entry entry : index.values()){
+            blobLastAccess.merge(entry.sha256(), entry.lastAccessMillis(), Math::max);
+            blobSize.put(entry.sha256(), entry.size());
+        }
+        long total = blobSize.values().stream().mapToLong(Long::longValue).sum();
+        if(total<=maxBytes){
+            return;
+        }
+        List<String> blobs = new ArrayList<>(blobLastAccess.keySet());
+        blobs.sort(Comparator.comparing(blobLastAccess::get));
+        for(String sha256 : blobs){
+            if(total<=maxBytes){
+                break;
+            }
+            try {
+                Files.deleteIfExists(blobFolder.resolve(sha256));
+                total -= blobSize.get(sha256);
+                index.values().removeIf(entry -> entry.sha256().equals(sha256));
+                logger.debug("ダウンロードキャッシュを削除しました[{}]", sha256);
+            }
+            catch (IOException e){
+                logger.warn("ダウンロードキャッシュを削除できませんでした[{}] {}", sha256, e.getMessage());
+            }
+        }
+    }
+
+    protected static void linkOrCopy(Path source, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        }
+        catch (IOException | UnsupportedOperationException e){
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);   //ハードリンクが作れないファイルシステムの場合
+        }
+    }
+
+    private void load(){
+        if(!Files.exists(indexFile)){
+            return;
+        }
+        try {
+            Map<String, Object> map = json.toType(Files.readString(indexFile), Json.MAP_TYPE);
+            for(Object o : map.values()){
+                Map<?, ?> m = (Map<?, ?>) o;
+                Entry entry = new Entry((String) m.get("url"), (String) m.get("etag"), (String) m.get("lastModified"),
+                        ((Number) m.get("size")).longValue(), (String) m.get("sha256"), ((Number) m.get("lastAccessMillis")).longValue());
+                index.put(entry.url(), entry);
+            }
+        }
+        catch (IOException | RuntimeException e){
+            logger.warn("ダウンロードキャッシュのindexを読み込めませんでした。{}", e.getMessage());
+            index.clear();
+        }
+    }
+
+    /**
+     * 書き込んでいない変更があれば、index.jsonに書き込む。
+     */
+    public synchronized void flush(){
+        if(dirty){
+            save();
+        }
+    }
+
+    /**
+     * 前回の書き込みからSAVE_INTERVAL_MILLIS以上経っていれば書き込む。それ以外は次の書き込みかflush()まで保留する。
+     */
+    private void saveIfDue(){
+        dirty=true;
+        if(System.currentTimeMillis()-lastSaveMillis>=SAVE_INTERVAL_MILLIS){
+            save();
+        }
+    }
+
+    private void save(){
+        Map<String, Object> map = new LinkedHashMap<>();
+        for(Entry entry : index.values()){
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("url", entry.url());
+            m.put("etag", entry.etag());
+            m.put("lastModified", entry.lastModified());
+            m.put("size", entry.size());
+            m.put("sha256", entry.sha256());
+            m.put("lastAccessMillis", entry.lastAccessMillis());
+            map.put(entry.url(), m);
+        }
+        try {
+            Path tmp = indexFile.resolveSibling(indexFile.getFileName()+".tmp");
+            Files.writeString(tmp, json.toJson(map));
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty=false;
+        }
+        catch (IOException e){
+            logger.warn("ダウンロードキャッシュのindexを保存できませんでした。{}", e.getMessage());
+        }
+        lastSaveMillis=System.currentTimeMillis();
+    }
+}
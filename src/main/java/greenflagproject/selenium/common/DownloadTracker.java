@@ -0,0 +1,373 @@
+package greenflagproject.selenium.common;
+
+import org.openqa.selenium.devtools.Command;
+import org.openqa.selenium.devtools.DevTools;
+import org.openqa.selenium.devtools.Event;
+import org.openqa.selenium.json.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ブラウザのダウンロード完了を検知する。
+ * Chromiumの場合はDevToolsのBrowser.downloadWillBegin/downloadProgressイベントで、
+ * それ以外(もしくはDevToolsが使えない場合)はダウンロードフォルダのWatchServiceで検知する。
+ * <p>
+ * expect()でダウンロード1件分のFutureを登録しておくと、ファイルが完成した時点で登録順にFutureを完了させる。
+ * 複数のダウンロードが重なっても、それぞれ別のファイルで完了する。
+ * DevToolsの場合は、ダウンロードのguid毎にFutureを対応付け、ブラウザにはguidの名前で保存させて完了時に元のファイル名に変更する
+ * (同じファイル名を続けてダウンロードしても、ブラウザが付ける連番の名前を推測せずに済む)。
+ */
+public class DownloadTracker implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(DownloadTracker.class);
+
+    /**
+     * WatchServiceで検知したファイルのサイズを確認する間隔(ms)。2回続けて同じサイズなら完成したものとする。
+     */
+    final static long STABLE_CHECK_MILLIS=300;
+
+    /**
+     * ダウンロード途中のファイルの拡張子(Chromium、Firefox)
+     */
+    final static List<String> IN_PROGRESS_SUFFIXES = List.of(".crdownload", ".part");
+
+    protected volatile Path downloadFolder;
+    protected final FileFilter fileFilter;
+    protected final Deque<CompletableFuture<File>> pendingDownloads = new ArrayDeque<>();
+    protected final Deque<File> unclaimedFiles = new ArrayDeque<>();
+    protected final Set<String> completedFileNames = new HashSet<>();
+    protected final Map<String, String> guidToFileName = new HashMap<>();
+    protected final Map<String, CompletableFuture<File>> guidToFuture = new HashMap<>();
+
+    /**
+     * WatchServiceで検知した、完成を確認中のファイルと前回確認したサイズ(未確認は-1)
+     */
+    protected final Map<File, Long> candidateFiles = new HashMap<>();
+
+    private WatchService watchService;
+    private Thread watchThread;
+    private boolean devToolsEnabled=false;
+
+    /**
+     * @param downloadFolder
+     * @param fileFilter ダウンロード途中のファイルなどを除くフィルタ
+     */
+    public DownloadTracker(Path downloadFolder, FileFilter fileFilter){
+        this.downloadFolder=downloadFolder;
+        this.fileFilter=fileFilter;
+    }
+
+    /**
+     * DevToolsのダウンロードイベントで検知を始める。
+     * @param devTools
+     * @return イベントを有効にできなかった場合はfalse
+     */
+    public boolean startWithDevTools(DevTools devTools){
+        try {
+            devTools.addListener(new Event<>("Browser.downloadWillBegin", input -> input.<Map<String, Object>>read(Json.MAP_TYPE)), event -> {
+                onBegin(String.valueOf(event.get("guid")), String.valueOf(event.get("suggestedFilename")));
+            });
+            devTools.addListener(new Event<>("Browser.downloadProgress", input -> input.<Map<String, Object>>read(Json.MAP_TYPE)), event -> {
+                String guid = String.valueOf(event.get("guid"));
+                switch (String.valueOf(event.get("state"))){
+                    case "completed" -> onCompleted(guid);
+                    case "canceled" -> onCanceled(guid);
+                    default -> {}
+                }
+            });
+            setDownloadBehavior(devTools);
+            devToolsEnabled=true;
+            logger.info("DevToolsのイベントでダウンロードを検知します。");
+            return true;
+        }
+        catch (RuntimeException e){
+            logger.warn("DevToolsのダウンロードイベントを有効にできませんでした。{}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * ダウンロードフォルダのWatchServiceで検知を始める。
+     * @throws IOException
+     */
+    public void startWithWatchService() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        downloadFolder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchThread = Thread.ofVirtual().name("download-tracker").start(this::watch);
+        logger.info("WatchServiceでダウンロードを検知します[{}]", downloadFolder);
+    }
+
+    /**
+     * ダウンロードフォルダを変更する。DevToolsで検知している場合はブラウザの保存先も変更する。
+     * @param devTools
+     * @param folder
+     */
+    public void changeDownloadFolder(DevTools devTools, Path folder) throws IOException {
+        this.downloadFolder=folder;
+        if(devToolsEnabled && null!=devTools){
+            setDownloadBehavior(devTools);
+        }
+        else if(null!=watchService){
+            close();
+            startWithWatchService();
+        }
+    }
+
+    /**
+     * guidの名前で保存させる(allowAndName)。完了時にonCompleted()で元のファイル名に変更する。
+     * @param devTools
+     */
+    protected void setDownloadBehavior(DevTools devTools){
+        devTools.send(new Command<Void>("Browser.setDownloadBehavior", Map.of(
+                "behavior", "allowAndName",
+                "downloadPath", downloadFolder.toString(),
+                "eventsEnabled", true)));
+    }
+
+    /**
+     * ダウンロード1件分の完了を待つFutureを登録する。
+     * 既に完了していて、まだどのFutureにも渡していないファイルがあれば、すぐに完了する。
+     * @return
+     */
+    public synchronized CompletableFuture<File> expect(){
+        CompletableFuture<File> future = new CompletableFuture<>();
+        File file = unclaimedFiles.poll();
+        if(null!=file){
+            future.complete(file);
+        }
+        else {
+            pendingDownloads.add(future);
+        }
+        return future;
+    }
+
+    /**
+     * 待っているダウンロードと、受け取り手のないファイルの情報を破棄する。
+     */
+    public synchronized void clear(){
+        pendingDownloads.forEach(future -> future.cancel(false));
+        pendingDownloads.clear();
+        guidToFuture.values().forEach(future -> future.cancel(false));
+        guidToFuture.clear();
+        unclaimedFiles.clear();
+        completedFileNames.clear();
+        guidToFileName.clear();
+        candidateFiles.clear();
+    }
+
+    /**
+     * ダウンロードの開始。待っているFutureのうち最も古いものをこのダウンロードに対応付ける。
+     * @param guid
+     * @param suggestedFileName
+     */
+    protected synchronized void onBegin(String guid, String suggestedFileName){
+        guidToFileName.put(guid, suggestedFileName);
+        CompletableFuture<File> future = pollPending();
+        if(null!=future){
+            guidToFuture.put(guid, future);
+        }
+    }
+
+    /**
+     * DevToolsで検知したダウンロードの完了。guidの名前で保存されたファイルを、元のファイル名(既にある場合は連番を付けた名前)に変更する。
+     * @param guid
+     */
+    protected synchronized void onCompleted(String guid){
+        String fileName = guidToFileName.remove(guid);
+        CompletableFuture<File> future = guidToFuture.remove(guid);
+        if(null==fileName){
+            return;     //開始を検知していない(clear()の前に始まった)ダウンロード
+        }
+        File file;
+        try {
+            file = moveToFileName(downloadFolder.resolve(guid), fileName).toFile();
+        }
+        catch (IOException e){
+            if(null!=future){
+                future.completeExceptionally(new RuntimeException("ダウンロードしたファイルの名前を変更できませんでした。"+fileName, e));
+            }
+            return;
+        }
+        if(!fileFilter.accept(file)){
+            if(null!=future && !future.isDone()){
+                pendingDownloads.addFirst(future);  //対象外のファイルなので、次のダウンロードを待つ
+            }
+            return;
+        }
+        logger.info("ダウンロードファイル: [{}]", file);
+        if(null!=future && future.complete(file)){
+            return;
+        }
+        deliver(file);  //対応付けたFutureがタイムアウトで諦められた場合など
+    }
+
+    /**
+     * guidの名前のファイルを、フォルダ内で重ならない名前に変更する。
+     */
+    protected static Path moveToFileName(Path guidFile, String fileName) throws IOException {
+        Path folder = guidFile.getParent();
+        if(!Files.exists(guidFile)){
+            Path named = folder.resolve(fileName);
+            if(Files.exists(named)){
+                return named;   //allowAndNameが効いていない(他からallowに変更された)場合
+            }
+            throw new IOException("ダウンロードしたファイルがありません。"+guidFile);
+        }
+        int dot = fileName.lastIndexOf('.');
+        String base = 0<dot ? fileName.substring(0, dot) : fileName;
+        String extension = 0<dot ? fileName.substring(dot) : "";
+        Path target = folder.resolve(fileName);
+        for(int i=1; Files.exists(target); i++){
+            target = folder.resolve(base+" ("+i+")"+extension);
+        }
+        return Files.move(guidFile, target);
+    }
+
+    /**
+     * WatchServiceで検知したファイルの完成
+     * @param file
+     */
+    protected synchronized void onFileStable(File file){
+        if(!fileFilter.accept(file) || pendingDownloads.isEmpty()){
+            return; //ブラウザ以外が置いたファイルと区別できないので、待っているものがなければ無視する
+        }
+        if(!completedFileNames.add(file.getName())){
+            return;
+        }
+        logger.info("ダウンロードファイル: [{}]", file);
+        deliver(file);
+    }
+
+    /**
+     * 待っているFutureのうち最も古いものを完了する。ない場合は次のexpect()のために保持する。
+     */
+    private void deliver(File file){
+        CompletableFuture<File> future = pollPending();
+        if(null!=future && future.complete(file)){
+            return;
+        }
+        unclaimedFiles.add(file);
+    }
+
+    /**
+     * タイムアウトで諦められたFutureを飛ばして、待っているFutureを取り出す。
+     */
+    private CompletableFuture<File> pollPending(){
+        CompletableFuture<File> future;
+        while (null!=(future = pendingDownloads.poll())){
+            if(!future.isDone()){
+                return future;
+            }
+        }
+        return null;
+    }
+
+    protected synchronized void onCanceled(String guid){
+        guidToFileName.remove(guid);
+        CompletableFuture<File> future = guidToFuture.remove(guid);
+        if(null!=future){
+            future.completeExceptionally(new RuntimeException("ダウンロードがキャンセルされました。"));
+        }
+    }
+
+    /**
+     * ダウンロード途中のファイル(Firefoxは完成後の名前の0バイトのファイルと.part、Chromiumは.crdownload)が残っている間は完成とみなさない。
+     */
+    static boolean isInProgress(File file){
+        String name = file.getName();
+        for(String suffix : IN_PROGRESS_SUFFIXES){
+            if(name.endsWith(suffix) || new File(file.getParentFile(), name+suffix).exists()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 確認中のファイルのうち、ダウンロード途中のファイルがなく、前回の確認からサイズが変わっていないものを完成とする。
+     */
+    protected void checkCandidates(){
+        List<File> stableFiles = new ArrayList<>();
+        synchronized (this){
+            Iterator<Map.Entry<File, Long>> iterator = candidateFiles.entrySet().iterator();
+            while (iterator.hasNext()){
+                Map.Entry<File, Long> entry = iterator.next();
+                File file = entry.getKey();
+                if(!file.isFile()){
+                    iterator.remove();
+                    continue;
+                }
+                long size = file.length();
+                if(isInProgress(file) || 0==size){
+                    entry.setValue(-1L);
+                }
+                else if(size==entry.getValue()){
+                    iterator.remove();
+                    stableFiles.add(file);
+                }
+                else {
+                    entry.setValue(size);
+                }
+            }
+        }
+        stableFiles.forEach(this::onFileStable);
+    }
+
+    /**
+     * 検知したファイルを完成の確認対象にする。ダウンロード途中のファイルの場合は、完成後の名前のファイルを対象にする。
+     */
+    protected synchronized void addCandidate(File file){
+        String name = file.getName();
+        for(String suffix : IN_PROGRESS_SUFFIXES){
+            if(name.endsWith(suffix)){
+                file = new File(file.getParentFile(), name.substring(0, name.length()-suffix.length()));
+                break;
+            }
+        }
+        candidateFiles.put(file, -1L);
+    }
+
+    private void watch(){
+        try {
+            while (!Thread.currentThread().isInterrupted()){
+                WatchKey key = watchService.poll(STABLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                if(null!=key){
+                    for(WatchEvent<?> event : key.pollEvents()){
+                        if(event.context() instanceof Path name){
+                            addCandidate(downloadFolder.resolve(name).toFile());
+                        }
+                    }
+                    if(!key.reset()){
+                        break;
+                    }
+                }
+                checkCandidates();
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException ignore){}
+    }
+
+    @Override
+    public void close() {
+        if(null!=watchThread){
+            watchThread.interrupt();
+            watchThread=null;
+        }
+        if(null!=watchService){
+            try {
+                watchService.close();
+            }
+            catch (IOException e){
+                logger.warn("WatchServiceを終了できませんでした。{}", e.getMessage());
+            }
+            watchService=null;
+        }
+    }
+}
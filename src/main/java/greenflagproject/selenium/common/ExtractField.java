@@ -0,0 +1,39 @@
+package greenflagproject.selenium.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * BulkExtractorで取り出す項目の指定。
+ * @param name 結果のExtractedItemで使う名前
+ * @param selector 取り出す要素のCSSセレクタ(要素からの相対)。nullの場合は要素自身
+ * @param attribute 取り出す属性。nullの場合は表示テキスト
+ * @param multiple trueの場合はselectorに一致するすべての要素から取り出す
+ */
+public record ExtractField(String name, String selector, String attribute, boolean multiple) {
+
+    public static ExtractField text(String name, String selector){
+        return new ExtractField(name, selector, null, false);
+    }
+
+    public static ExtractField attribute(String name, String selector, String attribute){
+        return new ExtractField(name, selector, attribute, false);
+    }
+
+    public static ExtractField allText(String name, String selector){
+        return new ExtractField(name, selector, null, true);
+    }
+
+    public static ExtractField allAttribute(String name, String selector, String attribute){
+        return new ExtractField(name, selector, attribute, true);
+    }
+
+    Map<String, Object> toScriptArgument(){
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("name", name);
+        map.put("selector", selector);
+        map.put("attribute", attribute);
+        map.put("multiple", multiple);
+        return map;
+    }
+}
@@ -0,0 +1,24 @@
+package greenflagproject.selenium.common;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BulkExtractorで取り出した1要素分の値。
+ * @param values ExtractFieldの名前毎の値。multipleでない項目も要素が見つからなければ空のListになる
+ */
+public record ExtractedItem(Map<String, List<String>> values) {
+
+    /**
+     * @param name
+     * @return 最初の値。値がない場合はnull
+     */
+    public String get(String name){
+        List<String> list = getAll(name);
+        return list.isEmpty() ? null : list.getFirst();
+    }
+
+    public List<String> getAll(String name){
+        return values.getOrDefault(name, List.of());
+    }
+}
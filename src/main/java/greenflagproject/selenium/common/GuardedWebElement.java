@@ -0,0 +1,174 @@
+package greenflagproject.selenium.common;
+
+import org.openqa.selenium.*;
+import org.openqa.selenium.interactions.Coordinates;
+import org.openqa.selenium.interactions.Locatable;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * ブラウザコンテキストでセッションを共有している場合のWebElement。
+ * 要素のコマンドも、要素を取得したウィンドウに切り替えてから実行する(SessionGuard)。
+ * executeScript()の引数やActionsには、WrapsElementで元の要素が渡される。
+ */
+class GuardedWebElement implements WebElement, WrapsElement, Locatable {
+    private final WebSiteControlDriver owner;
+    private final WebElement element;
+
+    GuardedWebElement(WebSiteControlDriver owner, WebElement element){
+        this.owner = owner;
+        this.element = element;
+    }
+
+    static List<WebElement> wrap(WebSiteControlDriver owner, List<WebElement> elements){
+        return elements.stream().<WebElement>map(element -> new GuardedWebElement(owner, element)).toList();
+    }
+
+    private <T> T guarded(Supplier<T> action){
+        return owner.guarded(action);
+    }
+
+    private void guarded(Runnable action){
+        owner.guarded(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    @Override
+    public WebElement getWrappedElement() {
+        return element;
+    }
+
+    @Override
+    public void click() {
+        guarded(element::click);
+    }
+
+    @Override
+    public void submit() {
+        guarded(element::submit);
+    }
+
+    @Override
+    public void sendKeys(CharSequence... keysToSend) {
+        guarded(() -> element.sendKeys(keysToSend));
+    }
+
+    @Override
+    public void clear() {
+        guarded(element::clear);
+    }
+
+    @Override
+    public String getTagName() {
+        return guarded(element::getTagName);
+    }
+
+    @Override
+    public String getDomProperty(String name) {
+        return guarded(() -> element.getDomProperty(name));
+    }
+
+    @Override
+    public String getDomAttribute(String name) {
+        return guarded(() -> element.getDomAttribute(name));
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public String getAttribute(String name) {
+        return guarded(() -> element.getAttribute(name));
+    }
+
+    @Override
+    public String getAriaRole() {
+        return guarded(element::getAriaRole);
+    }
+
+    @Override
+    public String getAccessibleName() {
+        return guarded(element::getAccessibleName);
+    }
+
+    @Override
+    public boolean isSelected() {
+        return guarded(element::isSelected);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return guarded(element::isEnabled);
+    }
+
+    @Override
+    public String getText() {
+        return guarded(element::getText);
+    }
+
+    @Override
+    public List<WebElement> findElements(By by) {
+        return wrap(owner, guarded(() -> element.findElements(by)));
+    }
+
+    @Override
+    public WebElement findElement(By by) {
+        return new GuardedWebElement(owner, guarded(() -> element.findElement(by)));
+    }
+
+    @Override
+    public SearchContext getShadowRoot() {
+        return guarded(element::getShadowRoot);
+    }
+
+    @Override
+    public boolean isDisplayed() {
+        return guarded(element::isDisplayed);
+    }
+
+    @Override
+    public Point getLocation() {
+        return guarded(element::getLocation);
+    }
+
+    @Override
+    public Dimension getSize() {
+        return guarded(element::getSize);
+    }
+
+    @Override
+    public Rectangle getRect() {
+        return guarded(element::getRect);
+    }
+
+    @Override
+    public String getCssValue(String propertyName) {
+        return guarded(() -> element.getCssValue(propertyName));
+    }
+
+    @Override
+    public <X> X getScreenshotAs(OutputType<X> target) throws WebDriverException {
+        return guarded(() -> element.getScreenshotAs(target));
+    }
+
+    @Override
+    public Coordinates getCoordinates() {
+        return ((Locatable) element).getCoordinates();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof WrapsElement wraps ? element.equals(wraps.getWrappedElement()) : element.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return element.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return element.toString();
+    }
+}
@@ -0,0 +1,667 @@
+package greenflagproject.selenium.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ブラウザを介さずにHTTPでファイルをダウンロードする。
+ * java.net.http.HttpClient(HTTP/2、コネクション再利用)を仮想スレッドで動かし、複数ファイルを同時にダウンロードする。
+ * 同時ダウンロード数は全体とホスト毎に上限を設定できる。
+ * <p>
+ * 受信したデータは一時ファイル(.ファイル名.part)のFileChannelに直接書き込み、完了後にrenameして保存先に置く。
+ * 転送が途中で切れた場合は、一時ファイルのサイズからRangeリクエストで続きを取得する。
+ * DownloadCacheが有効な場合は条件付きGETを行い、変更がなければキャッシュから取り出す。
+ */
+public class HttpFileDownloader implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(HttpFileDownloader.class);
+
+    /**
+     * 全体の同時ダウンロード数。
+     * デフォルトは8。
+     */
+    public final static String ENV_DOWNLOAD_MAX_CONCURRENCY="DOWNLOAD_MAX_CONCURRENCY";
+    public final static int DEFAULT_DOWNLOAD_MAX_CONCURRENCY=8;
+
+    /**
+     * ホスト毎の同時ダウンロード数。
+     * デフォルトは4。
+     */
+    public final static String ENV_DOWNLOAD_MAX_CONCURRENCY_PER_HOST="DOWNLOAD_MAX_CONCURRENCY_PER_HOST";
+    public final static int DEFAULT_DOWNLOAD_MAX_CONCURRENCY_PER_HOST=4;
+
+    /**
+     * 1ファイルのダウンロードのタイムアウト(秒)。
+     * デフォルトは120秒。
+     */
+    public final static String ENV_DOWNLOAD_TIMEOUT_SECOND="DOWNLOAD_TIMEOUT_SECOND";
+    public final static int DEFAULT_DOWNLOAD_TIMEOUT_SECOND=120;
+
+    /**
+     * 転送が途中で切れた場合に何回まで再開するか。
+     * デフォルトは3回。
+     */
+    public final static String ENV_DOWNLOAD_RETRY_TIMES="DOWNLOAD_RETRY_TIMES";
+    public final static int DEFAULT_DOWNLOAD_RETRY_TIMES=3;
+
+    private final static Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+    private final static Pattern UNSATISFIED_RANGE_PATTERN = Pattern.compile("bytes\\s+\\*/(\\d+)");
+
+    /**
+     * ダウンロード結果
+     * @param url
+     * @param path 保存したファイル
+     * @param bytes
+     * @param sha256
+     * @param duration
+     * @param fromCache 変更がなく、DownloadCacheから取り出した場合はtrue
+     * @param location OutputSinkに書き出した場合は書き出し先、それ以外はnull
+     */
+    public record DownloadResult(String url, Path path, long bytes, String sha256, Duration duration, boolean fromCache, String location){
+        DownloadResult withLocation(String location){
+            return new DownloadResult(url, path, bytes, sha256, duration, fromCache, location);
+        }
+    }
+
+    /**
+     * 一時ファイルへの転送結果
+     * @param size
+     * @param sha256
+     * @param etag
+     * @param lastModified
+     * @param notModified 条件付きGETで304が返された場合はtrue
+     */
+    protected record TransferredPart(long size, String sha256, String etag, String lastModified, boolean notModified){}
+
+    /**
+     * 1ファイルのダウンロードが終わるたびに呼び出される。ダウンロードしたスレッドから呼び出されるので、スレッドセーフにすること。
+     */
+    public interface Listener {
+        void onCompleted(DownloadResult result);
+
+        default void onFailed(String url, Path target, Throwable error){}
+    }
+
+    protected final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    protected final HttpClient httpClient;
+    protected final Semaphore globalPermits;
+    protected final int maxConcurrencyPerHost;
+    protected final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    protected final Duration timeout;
+    protected final int retryTimes;
+    protected final String userAgent;
+    protected final String referer;
+    protected DownloadCache cache = DownloadCache.getDefault();
+    protected volatile Deadline deadline = Deadline.NONE;
+    protected OutputSink outputSink = null;
+    protected boolean keepLocalCopy = true;
+    protected final List<CompletableFuture<DownloadResult>> futures = new CopyOnWriteArrayList<>();
+    protected final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public HttpFileDownloader(){
+        this((BrowserSession) null);
+    }
+
+    /**
+     * ブラウザのセッションを引き継ぐ。Cookie、User-Agent、Refererをリクエストに付ける。
+     * @param session nullの場合は引き継がない
+     */
+    public HttpFileDownloader(BrowserSession session){
+        this(CommonUtility.getIntEnv(ENV_DOWNLOAD_MAX_CONCURRENCY, DEFAULT_DOWNLOAD_MAX_CONCURRENCY),
+                CommonUtility.getIntEnv(ENV_DOWNLOAD_MAX_CONCURRENCY_PER_HOST, DEFAULT_DOWNLOAD_MAX_CONCURRENCY_PER_HOST),
+                session);
+    }
+
+    public HttpFileDownloader(int maxConcurrency, int maxConcurrencyPerHost){
+        this(maxConcurrency, maxConcurrencyPerHost, null);
+    }
+
+    public HttpFileDownloader(int maxConcurrency, int maxConcurrencyPerHost, BrowserSession session){
+        this.globalPermits = new Semaphore(Math.max(1, maxConcurrency));
+        this.maxConcurrencyPerHost = Math.max(1, maxConcurrencyPerHost);
+        this.timeout = Duration.ofSeconds(CommonUtility.getIntEnv(ENV_DOWNLOAD_TIMEOUT_SECOND, DEFAULT_DOWNLOAD_TIMEOUT_SECOND));
+        this.retryTimes = Math.max(0, CommonUtility.getIntEnv(ENV_DOWNLOAD_RETRY_TIMES, DEFAULT_DOWNLOAD_RETRY_TIMES));
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(executor);
+        if(null!=session){
+            builder.cookieHandler(session.createCookieManager());
+            this.userAgent = session.userAgent();
+            this.referer = session.referer();
+        }
+        else {
+            this.userAgent = null;
+            this.referer = null;
+        }
+        this.httpClient = builder.build();
+    }
+
+    /**
+     * 使うキャッシュを指定する。
+     * @param cache nullの場合はキャッシュを使わない
+     */
+    public void setCache(DownloadCache cache){
+        this.cache=cache;
+    }
+
+    /**
+     * 実行の期限を指定する。期限を過ぎた後はダウンロードを始めず、転送中のものは打ち切る(一時ファイルは残るので、次回は続きから再開する)。
+     * @param deadline
+     */
+    public void setDeadline(Deadline deadline){
+        this.deadline = null==deadline ? Deadline.NONE : deadline;
+    }
+
+    /**
+     * ダウンロードが終わったファイルの書き出し先を指定する。書き出しはダウンロードしたスレッドで行うので、他のファイルのダウンロードと並行する。
+     * @param outputSink nullの場合は書き出さない
+     * @param keepLocalCopy falseの場合、書き出したファイルは保存先から消す(/tmpに残るのはダウンロード中のファイルのみになる)
+     */
+    public void setOutputSink(OutputSink outputSink, boolean keepLocalCopy){
+        this.outputSink = outputSink;
+        this.keepLocalCopy = keepLocalCopy;
+    }
+
+    public void addListener(Listener listener){
+        listeners.add(listener);
+    }
+
+    /**
+     * ダウンロードを登録する。処理は仮想スレッドで非同期に行う。
+     * @param url
+     * @param target 保存先ファイル
+     * @return
+     */
+    public CompletableFuture<DownloadResult> submit(String url, Path target){
+        CompletableFuture<DownloadResult> future = CompletableFuture.supplyAsync(() -> {
+            try {
+                return download(url, target);
+            }
+            catch (IOException e){
+                throw new CompletionException(e);
+            }
+        }, executor);
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * 登録したすべてのダウンロードの完了を待つ。
+     * 失敗したものがあった場合は、すべての完了を待ってから例外を投げる。
+     * @return
+     */
+    public List<DownloadResult> awaitAll(){
+        List<DownloadResult> results = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for(var future : futures){
+            try {
+                results.add(future.join());
+            }
+            catch (CompletionException | CancellationException e){
+                Throwable cause = null==e.getCause() ? e : e.getCause();
+                logger.warn("ダウンロードに失敗しました。{}", cause.toString());
+                errors.add(cause);
+            }
+        }
+        futures.clear();
+        if(null!=cache){
+            cache.flush();
+        }
+        logger.info("ダウンロード完了:{}件 失敗:{}件", results.size(), errors.size());
+        if(!errors.isEmpty()){
+            RuntimeException exception = new RuntimeException(String.format("ダウンロードに失敗したファイルがあります(%d件)。", errors.size()));
+            errors.forEach(exception::addSuppressed);
+            throw exception;
+        }
+        return results;
+    }
+
+    /**
+     * 呼び出したスレッドでダウンロードする。同時ダウンロード数の上限は守る。
+     * @param url
+     * @param target
+     * @return
+     * @throws IOException
+     */
+    public DownloadResult download(String url, Path target) throws IOException {
+        URI uri = URI.create(url);
+        Semaphore hostPermit = hostPermits.computeIfAbsent(String.valueOf(uri.getHost()), host -> new Semaphore(maxConcurrencyPerHost));
+        try {
+            deadline.check("ダウンロード "+url);
+            acquire(globalPermits);
+            try {
+                acquire(hostPermit);
+                try {
+                    DownloadResult result = deliver(transfer(uri, target));
+                    listeners.forEach(listener -> listener.onCompleted(result));
+                    return result;
+                }
+                finally {
+                    hostPermit.release();
+                }
+            }
+            finally {
+                globalPermits.release();
+            }
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            IOException exception = new IOException("ダウンロードが中断されました。", e);
+            listeners.forEach(listener -> listener.onFailed(url, target, exception));
+            throw exception;
+        }
+        catch (IOException | RuntimeException e){
+            listeners.forEach(listener -> listener.onFailed(url, target, e));
+            throw e;
+        }
+    }
+
+    /**
+     * OutputSinkにファイルを書き出す。同時ダウンロード数の枠を持ったまま書き出すので、書き出しが遅い場合はダウンロードも待つ(/tmpにファイルが溜まらない)。
+     * @param result
+     * @return
+     * @throws IOException
+     */
+    protected DownloadResult deliver(DownloadResult result) throws IOException {
+        if(null==outputSink){
+            return result;
+        }
+        String location = outputSink.write(result.path().getFileName().toString(), result.path());
+        if(!keepLocalCopy){
+            Files.deleteIfExists(result.path());
+        }
+        return result.withLocation(location);
+    }
+
+    /**
+     * 同時ダウンロード数の枠を、期限まで待って取得する。
+     * @param permits
+     * @throws InterruptedException
+     */
+    protected void acquire(Semaphore permits) throws InterruptedException {
+        if(deadline.isUnbounded()){
+            permits.acquire();
+        }
+        else if(!permits.tryAcquire(deadline.remainingMillis(), TimeUnit.MILLISECONDS)){
+            throw new DeadlineExceededException("実行の期限までにダウンロードを始められませんでした。");
+        }
+    }
+
+    /**
+     * 一時ファイルにダウンロードし、完了したら保存先にrenameする。
+     * 通信エラーなどで途中で切れた場合は、一時ファイルに書けたところから再開する。
+     * @param uri
+     * @param target
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected DownloadResult transfer(URI uri, Path target) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        Path part = target.resolveSibling("."+target.getFileName()+".part");
+        Path validatorFile = target.resolveSibling("."+target.getFileName()+".validator");
+        DownloadCache.Entry cached = null;
+        if(null!=cache && !Files.exists(part)){
+            cached = cache.lookup(uri.toString());
+            if(null!=cached && !cached.hasValidator()){
+                cached = null;
+            }
+        }
+        IOException lastException = null;
+        for(int attempt=0; attempt<=retryTimes; attempt++){
+            deadline.check("ダウンロード "+uri);
+            try {
+                TransferredPart transferred = transferPart(uri, part, validatorFile, cached);
+                if(transferred.notModified()){
+                    cache.materialize(cached, target);
+                    Duration duration = Duration.ofNanos(System.nanoTime()-startNanos);
+                    logger.info("変更がないためキャッシュから取得しました[{}] {}bytes {}ms", target.getFileName(), cached.size(), duration.toMillis());
+                    return new DownloadResult(uri.toString(), target, cached.size(), cached.sha256(), duration, true, null);
+                }
+                moveAtomically(part, target);
+                Files.deleteIfExists(validatorFile);
+                if(null!=cache){
+                    cache.store(uri.toString(), transferred.etag(), transferred.lastModified(), target, transferred.sha256());
+                }
+                Duration duration = Duration.ofNanos(System.nanoTime()-startNanos);
+                logger.info("ダウンロードしました[{}] {}bytes {}ms", target.getFileName(), transferred.size(), duration.toMillis());
+                return new DownloadResult(uri.toString(), target, transferred.size(), transferred.sha256(), duration, false, null);
+            }
+            catch (HttpStatusException e){
+                throw e;    //サーバーが拒否しているので再開しない
+            }
+            catch (IOException e){
+                lastException = e;
+                logger.warn("ダウンロードが途中で失敗しました({}/{}) URL[{}] {}", attempt+1, retryTimes+1, uri, e.toString());
+            }
+        }
+        throw lastException;
+    }
+
+    /**
+     * 一時ファイルの続きからダウンロードする。
+     * 前回の応答のETag(もしくはLast-Modified)をIf-Rangeに付けるので、サーバー側のファイルが変わっていれば最初から取り直しになる。
+     * 一時ファイルがなくキャッシュがある場合は、条件付きGETにする。
+     * @param cached nullの場合は条件付きGETにしない
+     * @return
+     */
+    protected TransferredPart transferPart(URI uri, Path part, Path validatorFile, DownloadCache.Entry cached) throws IOException, InterruptedException {
+        long offset = Files.exists(part) ? Files.size(part) : 0;
+        String validator = Files.exists(validatorFile) ? Files.readString(validatorFile) : null;
+        if(0<offset && (null==validator || validator.isEmpty())){
+            offset = 0; //同じファイルの続きか確認できないので最初から取り直す
+        }
+
+        HttpRequest.Builder builder = newRequestBuilder(uri);
+        if(0<offset){
+            builder.header("Range", "bytes="+offset+"-").header("If-Range", validator);
+            logger.info("ダウンロードを再開します[{}] {}bytesから", uri, offset);
+        }
+        else if(null!=cached){
+            if(null!=cached.etag() && !cached.etag().isEmpty()){
+                builder.header("If-None-Match", cached.etag());
+            }
+            if(null!=cached.lastModified() && !cached.lastModified().isEmpty()){
+                builder.header("If-Modified-Since", cached.lastModified());
+            }
+        }
+
+        final long requestedOffset = offset;
+        AtomicReference<FileChannel> channelReference = new AtomicReference<>();
+        AtomicReference<MessageDigest> digestReference = new AtomicReference<>();
+        try {
+            HttpResponse<Long> response = send(builder.build(), responseInfo -> {
+                int status = responseInfo.statusCode();
+                if(200!=status && 206!=status){
+                    return HttpResponse.BodySubscribers.replacing(-1L);
+                }
+                long position = 206==status ? requestedOffset : 0;
+                if(206==status && position!=parseContentRangeStart(responseInfo.headers())){
+                    throw new UncheckedIOException(new IOException("Content-Rangeが要求した位置と一致しません。"));
+                }
+                try {
+                    saveValidator(responseInfo.headers(), validatorFile);
+                    FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    channelReference.set(channel);
+                    channel.truncate(position);
+                    channel.position(position);
+                    MessageDigest digest = digest(part, position);
+                    digestReference.set(digest);
+                    return new FileChannelSubscriber(channel, position, digest);
+                }
+                catch (IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            int status = response.statusCode();
+            if(304==status && null!=cached && 0==requestedOffset){
+                return new TransferredPart(cached.size(), cached.sha256(), cached.etag(), cached.lastModified(), true);
+            }
+            if(416==status && 0<requestedOffset){
+                long total = parseUnsatisfiedRangeTotal(response.headers());
+                if(total==requestedOffset){
+                    return new TransferredPart(requestedOffset, HexFormat.of().formatHex(digest(part, requestedOffset).digest()), null, null, false); //前回の時点で全部受信できていた
+                }
+                Files.deleteIfExists(part);
+                throw new IOException("一時ファイルのサイズがサーバーのファイルと一致しないため、最初から取り直します。");
+            }
+            if(200!=status && 206!=status){
+                Files.deleteIfExists(part);
+                Files.deleteIfExists(validatorFile);
+                throw new HttpStatusException(status, uri);
+            }
+
+            long size = response.body();
+            long expected = expectedSize(response);
+            if(0<=expected && size!=expected){
+                throw new IOException(String.format("受信サイズが一致しません。受信:%d 期待:%d", size, expected));
+            }
+            HttpHeaders headers = response.headers();
+            return new TransferredPart(size, HexFormat.of().formatHex(digestReference.get().digest()),
+                    headers.firstValue("ETag").orElse(null), headers.firstValue("Last-Modified").orElse(null), false);
+        }
+        catch (UncheckedIOException e){
+            throw e.getCause();
+        }
+        finally {
+            FileChannel channel = channelReference.get();
+            if(null!=channel){
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * リクエストを送り、応答の受信が終わるのを待つ。期限がある場合は、期限を過ぎたら転送を打ち切る。
+     * @param request
+     * @param bodyHandler
+     * @return
+     * @param <T>
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+        if(deadline.isUnbounded()){
+            return httpClient.send(request, bodyHandler);
+        }
+        CompletableFuture<HttpResponse<T>> future = httpClient.sendAsync(request, bodyHandler);
+        try {
+            return future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (java.util.concurrent.TimeoutException e){
+            future.cancel(true);
+            throw new DeadlineExceededException("実行の期限までにダウンロードが終わりませんでした。"+request.uri());
+        }
+        catch (ExecutionException e){
+            Throwable cause = e.getCause() instanceof UncheckedIOException unchecked ? unchecked.getCause() : e.getCause();
+            if(cause instanceof IOException ioException){
+                throw ioException;
+            }
+            if(cause instanceof RuntimeException runtimeException){
+                throw runtimeException;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    protected HttpRequest.Builder newRequestBuilder(URI uri){
+        Duration requestTimeout = deadline.cap(timeout);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(requestTimeout.isZero() ? Duration.ofMillis(1) : requestTimeout).GET();
+        if(null!=userAgent && !userAgent.isEmpty()){
+            builder.header("User-Agent", userAgent);
+        }
+        if(null!=referer && referer.startsWith("http")){
+            builder.header("Referer", referer);
+        }
+        return builder;
+    }
+
+    /**
+     * 再開時に同じファイルか確認するためのETag(弱いETagは使えないのでLast-Modified)を保存する
+     */
+    protected void saveValidator(HttpHeaders headers, Path validatorFile) throws IOException {
+        Optional<String> etag = headers.firstValue("ETag").filter(value -> !value.startsWith("W/"));
+        Optional<String> validator = etag.isPresent() ? etag : headers.firstValue("Last-Modified");
+        if(validator.isPresent()){
+            Files.writeString(validatorFile, validator.get());
+        }
+        else {
+            Files.deleteIfExists(validatorFile);
+        }
+    }
+
+    /**
+     * 一時ファイルの先頭からpositionまでを読み込んだSHA-256のMessageDigestを作成する。
+     * 続きは受信しながら追加する。
+     */
+    protected static MessageDigest digest(Path file, long position) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+        if(0<position){
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1024*1024);
+                long remaining = position;
+                while(0<remaining){
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                    int read = channel.read(buffer);
+                    if(read<0){
+                        break;
+                    }
+                    remaining -= read;
+                    digest.update(buffer.flip());
+                }
+            }
+        }
+        return digest;
+    }
+
+    protected long expectedSize(HttpResponse<?> response){
+        HttpHeaders headers = response.headers();
+        if(206==response.statusCode()){
+            Matcher matcher = CONTENT_RANGE_PATTERN.matcher(headers.firstValue("Content-Range").orElse(""));
+            return matcher.find() && !"*".equals(matcher.group(3)) ? Long.parseLong(matcher.group(3)) : -1;
+        }
+        if(headers.firstValue("Content-Encoding").isPresent()){
+            return -1;  //圧縮されている場合はContent-Lengthと受信サイズが一致しない
+        }
+        return headers.firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    private static long parseContentRangeStart(HttpHeaders headers){
+        Matcher matcher = CONTENT_RANGE_PATTERN.matcher(headers.firstValue("Content-Range").orElse(""));
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    private static long parseUnsatisfiedRangeTotal(HttpHeaders headers){
+        Matcher matcher = UNSATISFIED_RANGE_PATTERN.matcher(headers.firstValue("Content-Range").orElse(""));
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    protected static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e){
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * HTTPステータスがエラーだった場合の例外。通信エラーと違い、再開しても結果は変わらない。
+     */
+    public static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int statusCode;
+        public HttpStatusException(int statusCode, URI uri){
+            super(String.format("HTTPステータスエラー[%d] URL[%s]", statusCode, uri));
+            this.statusCode=statusCode;
+        }
+        public int getStatusCode(){
+            return statusCode;
+        }
+    }
+
+    /**
+     * HttpClientが受け取ったByteBufferを、そのままFileChannelに書き込むBodySubscriber。
+     * byte[]への中間コピーを行わない。書き込みと同時にSHA-256を計算する。
+     * 結果は書き込み後のファイルサイズ。
+     */
+    protected static class FileChannelSubscriber implements HttpResponse.BodySubscriber<Long> {
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private long position;
+
+        public FileChannelSubscriber(FileChannel channel, long position, MessageDigest digest){
+            this.channel=channel;
+            this.position=position;
+            this.digest=digest;
+        }
+
+        @Override
+        public CompletionStage<Long> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription=subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            try {
+                ByteBuffer[] buffers = items.toArray(ByteBuffer[]::new);
+                for(ByteBuffer buffer : buffers){
+                    digest.update(buffer.duplicate());
+                }
+                long remaining = items.stream().mapToLong(ByteBuffer::remaining).sum();
+                while(0<remaining){
+                    long written = channel.write(buffers);
+                    remaining -= written;
+                    position += written;
+                }
+                subscription.request(1);
+            }
+            catch (IOException e){
+                subscription.cancel();
+                result.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(position);
+        }
+    }
+
+    @Override
+    public void close() {
+        httpClient.close();
+        executor.shutdown();
+        if(null!=cache){
+            cache.flush();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package greenflagproject.selenium.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * ローカルのフォルダ(EFSのマウント先など)に書き出す。
+ */
+public class LocalOutputSink implements OutputSink {
+    protected final Path folder;
+
+    public LocalOutputSink(Path folder){
+        this.folder = folder;
+    }
+
+    @Override
+    public String write(String name, Path file) throws IOException {
+        Files.createDirectories(folder);
+        Path target = folder.resolve(name);
+        Path tmp = target.resolveSibling("."+name+".tmp");
+        Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);  //書き出し途中のファイルを見せない
+        return target.toString();
+    }
+}
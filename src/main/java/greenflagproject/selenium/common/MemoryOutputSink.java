@@ -0,0 +1,28 @@
+package greenflagproject.selenium.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * メモリに書き出す。動作確認やベンチマークで、書き出したファイルの内容を確認するために使う。
+ */
+public class MemoryOutputSink implements OutputSink {
+    protected final Map<String, byte[]> files = new ConcurrentHashMap<>();
+
+    @Override
+    public String write(String name, Path file) throws IOException {
+        files.put(name, Files.readAllBytes(file));
+        return "memory:"+name;
+    }
+
+    /**
+     * @return ファイル名と内容(ファイル名順)
+     */
+    public Map<String, byte[]> getFiles(){
+        return new TreeMap<>(files);
+    }
+}
@@ -0,0 +1,111 @@
+package greenflagproject.selenium.common;
+
+import org.openqa.selenium.*;
+import org.openqa.selenium.support.ui.ExpectedConditions;
+import org.openqa.selenium.support.ui.WebDriverWait;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+/**
+ * ページ内のMutationObserverで要素の表示を待つ。
+ * WebDriverWaitはWebDriverのHTTP通信で500ms毎に確認するので、要素が表示されてから平均250ms程度遅れて気付く。
+ * executeAsyncScriptでページ内で待ち、DOMが変化した時点で判定するので、表示された直後に戻る。
+ * <p>
+ * ページ遷移でスクリプトが破棄された場合や、ロケーターがCSSセレクタ・XPathに変換できない場合は、WebDriverWaitで待つ。
+ */
+public class MutationObserverWait {
+    private final static Logger logger = LoggerFactory.getLogger(MutationObserverWait.class);
+
+    /**
+     * ページ内で1回に待つ最大時間(ms)。WebDriverのscript timeout(デフォルト30秒)より短くする。
+     */
+    final static long MAX_SCRIPT_WAIT_MILLIS=25*1000;
+
+    /**
+     * arguments: using(css selector/xpath), value, timeout(ms), callback
+     * DOMの変化に加えて、CSSの読み込みなどDOMが変化しない表示の変化のために100ms毎にも確認する。
+     */
+    final static String WAIT_VISIBLE_SCRIPT = """
+            var using=arguments[0], value=arguments[1], timeout=arguments[2], done=arguments[arguments.length-1];
+            function find(){
+              if(using==='xpath'){
+                return document.evaluate(value, document, null, XPathResult.FIRST_ORDERED_NODE_TYPE, null).singleNodeValue;
+              }
+              return document.querySelector(value);
+            }
+            function visible(e){
+              if(!e || !(e instanceof Element) || 0===e.getClientRects().length){ return false; }
+              var style=window.getComputedStyle(e);
+              return style.visibility!=='hidden' && style.display!=='none' && style.opacity!=='0';
+            }
+            if(visible(find())){ done(true); return; }
+            var finished=false, observer=null, interval=null, timer=null;
+            function finish(result){
+              if(finished){ return; }
+              finished=true;
+              if(observer){ observer.disconnect(); }
+              clearInterval(interval);
+              clearTimeout(timer);
+              done(result);
+            }
+            function check(){ if(visible(find())){ finish(true); } }
+            observer=new MutationObserver(check);
+            observer.observe(document.documentElement||document, {subtree:true, childList:true, attributes:true});
+            interval=setInterval(check, 100);
+            timer=setTimeout(function(){ finish(false); }, timeout);
+            """;
+
+    protected final WebDriver driver;
+
+    public MutationObserverWait(WebDriver driver){
+        this.driver=driver;
+    }
+
+    /**
+     * 要素が表示されるまで待つ。
+     * @param by
+     * @param timeout
+     * @throws TimeoutException タイムアウトした場合
+     */
+    public void waitVisible(By by, Duration timeout){
+        long deadlineNanos = System.nanoTime()+timeout.toNanos();
+        By.Remotable.Parameters parameters = toParameters(by);
+        if(null!=parameters && driver instanceof JavascriptExecutor executor){
+            try {
+                long remainingMillis;
+                while(0<(remainingMillis=Duration.ofNanos(deadlineNanos-System.nanoTime()).toMillis())){
+                    Object result = executor.executeAsyncScript(WAIT_VISIBLE_SCRIPT, parameters.using(), parameters.value(), Math.min(remainingMillis, MAX_SCRIPT_WAIT_MILLIS));
+                    if(Boolean.TRUE.equals(result)){
+                        return;
+                    }
+                }
+                throw new TimeoutException(String.format("Expected condition failed: waiting for visibility of element located by %s (tried for %d second(s))", by, timeout.toSeconds()));
+            }
+            catch (TimeoutException e){
+                throw e;
+            }
+            catch (WebDriverException e){
+                logger.debug("MutationObserverでの待機に失敗したため、WebDriverWaitで待ちます。{}", e.getMessage());  //ページ遷移でスクリプトが破棄された場合など
+            }
+        }
+        Duration remaining = Duration.ofNanos(Math.max(0, deadlineNanos-System.nanoTime()));
+        new WebDriverWait(driver, remaining).until(ExpectedConditions.visibilityOfElementLocated(by));
+    }
+
+    /**
+     * ページ内で検索できる形(CSSセレクタ・XPath)に変換する。
+     * @param by
+     * @return 変換できない場合はnull
+     */
+    protected static By.Remotable.Parameters toParameters(By by){
+        if(by instanceof By.Remotable remotable){
+            By.Remotable.Parameters parameters = remotable.getRemoteParameters();
+            if("css selector".equals(parameters.using()) || "xpath".equals(parameters.using())){
+                return parameters;
+            }
+        }
+        return null;
+    }
+}
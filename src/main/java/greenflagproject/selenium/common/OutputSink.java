@@ -0,0 +1,62 @@
+package greenflagproject.selenium.common;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * ダウンロードしたファイルの書き出し先。
+ * HttpFileDownloaderは1ファイルのダウンロードが終わるたびに、そのダウンロードのスレッドでwrite()を呼び出す。
+ * 他のファイルのダウンロードは並行して続くので、書き出し(アップロード)の時間はダウンロードの時間に重なる。
+ * 複数のスレッドから同時に呼び出されるので、実装はスレッドセーフにすること。
+ */
+public interface OutputSink extends AutoCloseable {
+    /**
+     * 書き出し先の種類(local/s3)。
+     * デフォルトは指定なし(ダウンロードフォルダに置いたままにする)。
+     */
+    String ENV_OUTPUT_SINK="OUTPUT_SINK";
+
+    /**
+     * OUTPUT_SINK=localの書き出し先のフォルダ。
+     */
+    String ENV_OUTPUT_LOCAL_FOLDER="OUTPUT_LOCAL_FOLDER";
+
+    /**
+     * 書き出した後も、ダウンロードフォルダ(/tmp)のファイルを残すか。
+     * falseの場合は書き出したファイルを消すので、/tmpの使用量はダウンロード中のファイル分だけになる。
+     * デフォルトはtrue。
+     */
+    String ENV_OUTPUT_KEEP_LOCAL_COPY="OUTPUT_KEEP_LOCAL_COPY";
+    boolean DEFAULT_OUTPUT_KEEP_LOCAL_COPY=true;
+
+    /**
+     * ファイルを書き出す。
+     * @param name 書き出し先でのファイル名
+     * @param file ダウンロードしたファイル
+     * @return 書き出し先(ファイルのパス、s3://bucket/keyなど)
+     * @throws IOException
+     */
+    String write(String name, Path file) throws IOException;
+
+    @Override
+    default void close() throws IOException {}
+
+    /**
+     * 環境変数OUTPUT_SINKの書き出し先を作成する。
+     * @return 指定がない場合はnull
+     */
+    static OutputSink fromEnv(){
+        String type = CommonUtility.getEnv(ENV_OUTPUT_SINK, "");
+        return switch (type.toLowerCase()){
+            case "" -> null;
+            case "local" -> new LocalOutputSink(Paths.get(CommonUtility.getEnv(ENV_OUTPUT_LOCAL_FOLDER, "output")));
+            case "s3" -> S3OutputSink.fromEnv();
+            default -> throw new RuntimeException(String.format("Env %s[%s]の書き出し先は定義されていません。", ENV_OUTPUT_SINK, type));
+        };
+    }
+
+    static boolean keepLocalCopy(){
+        return CommonUtility.getBooleanEnv(ENV_OUTPUT_KEEP_LOCAL_COPY, DEFAULT_OUTPUT_KEEP_LOCAL_COPY);
+    }
+}
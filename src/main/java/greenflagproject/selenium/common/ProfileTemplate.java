@@ -0,0 +1,183 @@
+package greenflagproject.selenium.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Chromiumのプロファイル(--user-data-dir)のテンプレート。
+ * 同じWebサイトに対する処理を一度実行したプロファイル(HTTPキャッシュ、HSTS、HTTPサーバーの情報など)をイメージに含めておき、
+ * ブラウザの起動時にブラウザ毎のプロファイルのフォルダにコピーする。最初のページの読み込みがキャッシュから行われ、初回起動のプロファイル作成も省ける。
+ * <p>
+ * キャッシュ以外のファイル(設定、HSTSなど)は全てコピーし、キャッシュは上限のサイズまで新しいものからコピーする。
+ * テンプレートはProfileTemplateBuilderで作成する。
+ */
+public class ProfileTemplate {
+    private final static Logger logger = LoggerFactory.getLogger(ProfileTemplate.class);
+
+    /**
+     * テンプレートのフォルダ。
+     * デフォルトは指定なし(空のプロファイルで起動する)。
+     */
+    public final static String ENV_PROFILE_TEMPLATE_PATH="PROFILE_TEMPLATE_PATH";
+
+    /**
+     * テンプレートの作成時、およびコピー時のプロファイルのサイズの上限(MB)。超えた分のキャッシュは古いものからコピーしない。
+     * デフォルトは64MB。
+     */
+    public final static String ENV_PROFILE_TEMPLATE_MAX_MB="PROFILE_TEMPLATE_MAX_MB";
+    public final static int DEFAULT_PROFILE_TEMPLATE_MAX_MB=64;
+
+    /**
+     * コピーしないファイル・フォルダ(起動中のブラウザのロック、クラッシュレポート、ブラウザのバージョン毎に作り直されるもの)
+     */
+    final static Set<String> EXCLUDED_NAMES = Set.of(
+            "SingletonLock", "SingletonSocket", "SingletonCookie", "DevToolsActivePort", "lockfile",
+            "Crashpad", "Crash Reports", "BrowserMetrics", "ShaderCache", "GrShaderCache", "GraphiteDawnCache", "component_crx_cache");
+
+    /**
+     * サイズの上限を超えた場合に、新しいものから残すキャッシュのフォルダ
+     */
+    final static Set<String> CACHE_FOLDER_NAMES = Set.of("Cache", "Code Cache", "GPUCache", "CacheStorage", "ScriptCache");
+
+    /**
+     * 環境変数PROFILE_TEMPLATE_PATHのテンプレートを返す。
+     * @return 指定がない、もしくはフォルダがない場合はnull
+     */
+    public static ProfileTemplate fromEnv(){
+        String path = CommonUtility.getEnv(ENV_PROFILE_TEMPLATE_PATH, "");
+        if(path.isEmpty()){
+            return null;
+        }
+        if(!Files.isDirectory(Paths.get(path))){
+            logger.warn("プロファイルのテンプレートがありません[{}]。空のプロファイルで起動します。", path);
+            return null;
+        }
+        return new ProfileTemplate(Paths.get(path), getMaxBytes());
+    }
+
+    public static long getMaxBytes(){
+        return CommonUtility.getIntEnv(ENV_PROFILE_TEMPLATE_MAX_MB, DEFAULT_PROFILE_TEMPLATE_MAX_MB)*1024L*1024L;
+    }
+
+    protected final Path folder;
+    protected final long maxBytes;
+
+    public ProfileTemplate(Path folder, long maxBytes){
+        this.folder = folder;
+        this.maxBytes = maxBytes;
+    }
+
+    public Path getFolder(){
+        return folder;
+    }
+
+    /**
+     * テンプレートをプロファイルのフォルダにコピーする。ブラウザの起動前に呼び出すこと。
+     * @param profileFolder
+     * @return コピーしたサイズ(bytes)
+     */
+    public long copyTo(Path profileFolder){
+        long startNanos = System.nanoTime();
+        try {
+            long bytes = copyPruned(folder, profileFolder, maxBytes);
+            logger.info("プロファイルのテンプレートをコピーしました[{}]→[{}] {}bytes {}ms", folder, profileFolder, bytes, (System.nanoTime()-startNanos)/1_000_000);
+            return bytes;
+        }
+        catch (IOException e){
+            logger.warn("プロファイルのテンプレートをコピーできませんでした。空のプロファイルで起動します。{}", e.getMessage());
+            try {
+                WorkspaceManager.deleteRecursively(profileFolder);
+            }
+            catch (IOException deleteException){
+                logger.debug("コピー途中のプロファイルを削除できませんでした。{}", deleteException.getMessage());
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * 処理を実行した後のプロファイルをテンプレートとして保存する。既存のテンプレートは置き換える。
+     * ブラウザを終了してから(ファイルが書き込まれてから)呼び出すこと。
+     * @param profileFolder
+     * @param templateFolder
+     * @param maxBytes
+     * @return 保存したサイズ(bytes)
+     * @throws IOException
+     */
+    public static long save(Path profileFolder, Path templateFolder, long maxBytes) throws IOException {
+        Path tmp = templateFolder.resolveSibling(templateFolder.getFileName()+".tmp");
+        WorkspaceManager.deleteRecursively(tmp);
+        long bytes = copyPruned(profileFolder, tmp, maxBytes);
+        WorkspaceManager.deleteRecursively(templateFolder);
+        Files.move(tmp, templateFolder, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("プロファイルのテンプレートを保存しました[{}] {}bytes", templateFolder, bytes);
+        return bytes;
+    }
+
+    /**
+     * キャッシュ以外のファイルは全てコピーし、キャッシュは残りのサイズに収まるだけ新しいものからコピーする。
+     * @param source
+     * @param target
+     * @param maxBytes
+     * @return コピーしたサイズ(bytes)
+     * @throws IOException
+     */
+    static long copyPruned(Path source, Path target, long maxBytes) throws IOException {
+        Map<Path, BasicFileAttributes> essentialFiles = new LinkedHashMap<>();
+        Map<Path, BasicFileAttributes> cacheFiles = new LinkedHashMap<>();
+        Files.createDirectories(target);
+        Files.walkFileTree(source, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if(!dir.equals(source) && EXCLUDED_NAMES.contains(dir.getFileName().toString())){
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));   //キャッシュのindexがフォルダを前提にしているので、フォルダは全て作る
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if(attributes.isRegularFile() && !EXCLUDED_NAMES.contains(file.getFileName().toString())){
+                    (isCacheFile(source.relativize(file)) ? cacheFiles : essentialFiles).put(file, attributes);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        long total = 0;
+        for(Path file : essentialFiles.keySet()){
+            Files.copy(file, target.resolve(source.relativize(file).toString()), StandardCopyOption.REPLACE_EXISTING);
+            total += essentialFiles.get(file).size();
+        }
+        List<Path> caches = new ArrayList<>(cacheFiles.keySet());
+        caches.sort(Comparator.comparing((Path file) -> cacheFiles.get(file).lastModifiedTime()).reversed());
+        int skipped = 0;
+        for(Path file : caches){
+            long size = cacheFiles.get(file).size();
+            if(total+size>maxBytes){
+                skipped++;
+                continue;
+            }
+            Files.copy(file, target.resolve(source.relativize(file).toString()), StandardCopyOption.REPLACE_EXISTING);
+            total += size;
+        }
+        if(0<skipped){
+            logger.info("サイズの上限({}bytes)を超えるため、古いキャッシュ{}件をコピーしませんでした。", maxBytes, skipped);
+        }
+        return total;
+    }
+
+    static boolean isCacheFile(Path relativePath){
+        for(Path name : relativePath){
+            if(CACHE_FOLDER_NAMES.contains(name.toString())){
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,169 @@
+package greenflagproject.selenium.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * リモートのブラウザ(EXECUTE_BROWSER=remote)のセッションを保持して使いまわすプール。
+ * quit()されたセッションは終了せずに初期化(reset())してプールに戻し、次のacquire()で渡す。
+ * 保持している間は一定間隔で軽いコマンドを送り、リモート側(Selenium Gridなど)のアイドルタイムアウトで切られないようにする。
+ * 応答しなくなったセッションは破棄する。
+ */
+public class RemoteSessionPool {
+    private final static Logger logger = LoggerFactory.getLogger(RemoteSessionPool.class);
+
+    /**
+     * 保持するセッションの最大数。0の場合は保持せず、quit()で終了する。
+     * デフォルトは1。
+     */
+    public final static String ENV_REMOTE_SESSION_POOL_SIZE="REMOTE_SESSION_POOL_SIZE";
+    public final static int DEFAULT_REMOTE_SESSION_POOL_SIZE=1;
+
+    /**
+     * 保持しているセッションにkeep-aliveのコマンドを送る間隔(秒)。
+     * デフォルトは60秒。
+     */
+    public final static String ENV_REMOTE_KEEPALIVE_SECOND="REMOTE_KEEPALIVE_SECOND";
+    public final static int DEFAULT_REMOTE_KEEPALIVE_SECOND=60;
+
+    private static RemoteSessionPool instance=null;
+
+    public static synchronized RemoteSessionPool getInstance(){
+        if(null==instance){
+            instance = new RemoteSessionPool(
+                    CommonUtility.getIntEnv(ENV_REMOTE_SESSION_POOL_SIZE, DEFAULT_REMOTE_SESSION_POOL_SIZE),
+                    CommonUtility.getIntEnv(ENV_REMOTE_KEEPALIVE_SECOND, DEFAULT_REMOTE_KEEPALIVE_SECOND));
+            Runtime.getRuntime().addShutdownHook(new Thread(instance::close));   //リモートにセッションを残さない
+        }
+        return instance;
+    }
+
+    protected final int maxIdleSessions;
+    protected final int keepAliveSecond;
+    protected final Deque<WebSiteControlDriver> idleSessions = new ArrayDeque<>();
+    private final ScheduledExecutorService keepAliveExecutor;
+    private boolean keepAliveScheduled=false;
+
+    public RemoteSessionPool(int maxIdleSessions, int keepAliveSecond){
+        this.maxIdleSessions = Math.max(0, maxIdleSessions);
+        this.keepAliveSecond = keepAliveSecond;
+        keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "remote-session-keepalive");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 最初にセッションをプールに戻した時にkeep-aliveを開始する(コンストラクタで自身を別スレッドに渡さないため)。
+     */
+    private synchronized void scheduleKeepAlive(){
+        if(keepAliveScheduled || 0>=keepAliveSecond || keepAliveExecutor.isShutdown()){
+            return;
+        }
+        keepAliveExecutor.scheduleWithFixedDelay(this::keepAlive, keepAliveSecond, keepAliveSecond, TimeUnit.SECONDS);
+        keepAliveScheduled=true;
+    }
+
+    /**
+     * 保持しているセッションを返す。保持しているものがない場合は、新しくセッションを作成する。
+     * @param headlessMode
+     * @return
+     */
+    public WebSiteControlDriver acquire(boolean headlessMode){
+        WebSiteControlDriver driver;
+        synchronized (this){
+            driver = idleSessions.pollFirst();
+        }
+        if(null!=driver){
+            logger.info("保持しているリモートのセッションを利用します。");
+            return driver;
+        }
+        driver = WebSiteControlDriver.createRemoteDriver(headlessMode);
+        driver.setSessionPool(this);
+        return driver;
+    }
+
+    /**
+     * セッションを初期化してプールに戻す。
+     * @param driver
+     * @return プールに戻せなかった(満杯、もしくは初期化に失敗した)場合はfalse。呼び出し元でセッションを終了する
+     */
+    boolean release(WebSiteControlDriver driver){
+        synchronized (this){
+            if(idleSessions.size()>=maxIdleSessions){
+                return false;
+            }
+        }
+        try {
+            driver.reset();
+        }
+        catch (RuntimeException e){
+            logger.warn("リモートのセッションを初期化できなかったため終了します。{}", e.getMessage());
+            return false;
+        }
+        synchronized (this){
+            if(idleSessions.size()>=maxIdleSessions){
+                return false;
+            }
+            idleSessions.addLast(driver);
+        }
+        scheduleKeepAlive();
+        logger.info("リモートのセッションをプールに戻しました。");
+        return true;
+    }
+
+    /**
+     * 保持しているセッションに軽いコマンドを送る。応答しないセッションは破棄する。
+     */
+    protected void keepAlive(){
+        Deque<WebSiteControlDriver> sessions;
+        synchronized (this){
+            sessions = new ArrayDeque<>(idleSessions);
+            idleSessions.clear();
+        }
+        for(WebSiteControlDriver driver : sessions){
+            if(driver.isHealthy()){
+                synchronized (this){
+                    idleSessions.addLast(driver);
+                }
+            }
+            else {
+                logger.info("応答しないリモートのセッションを破棄します。");
+                driver.setSessionPool(null);
+                quitQuietly(driver);
+            }
+        }
+    }
+
+    /**
+     * 保持しているすべてのセッションを終了する。
+     */
+    public void close(){
+        keepAliveExecutor.shutdownNow();
+        Deque<WebSiteControlDriver> sessions;
+        synchronized (this){
+            sessions = new ArrayDeque<>(idleSessions);
+            idleSessions.clear();
+        }
+        for(WebSiteControlDriver driver : sessions){
+            driver.setSessionPool(null);
+            quitQuietly(driver);
+        }
+    }
+
+    private static void quitQuietly(WebSiteControlDriver driver){
+        try {
+            driver.quit();
+        }
+        catch (RuntimeException e){
+            logger.warn("リモートのセッションを終了できませんでした。{}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package greenflagproject.selenium.common;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * ブラウザに読み込ませるリソースの指定。
+ * 画像・フォント・メディアなどの処理に不要なリソースを読み込まないようにして、ページの表示を速くし、レンダラーのメモリを減らす。
+ * WebSiteControlDriver.applyResourcePolicy()でDevToolsを使って適用する。
+ * @param allowedResourceTypes 読み込みを許可するリソースの種類(DevToolsのNetwork.ResourceType)。nullの場合はすべて許可
+ * @param blockedUrlPatterns 読み込まないURLのパターン。「*」をワイルドカードとして使える
+ */
+public record ResourcePolicy(Set<String> allowedResourceTypes, List<String> blockedUrlPatterns) {
+
+    /**
+     * 制限しない
+     */
+    public final static ResourcePolicy ALLOW_ALL = new ResourcePolicy(null, List.of());
+
+    /**
+     * ドキュメント、スクリプト、XHR(Fetch)のみ読み込む。
+     * XHRのCORSプリフライトも許可しておかないとXHRが失敗するので許可する。
+     * @return
+     */
+    public static ResourcePolicy defaultPolicy(){
+        return new ResourcePolicy(Set.of("Document", "Script", "XHR", "Fetch", "Preflight"), List.of());
+    }
+
+    /**
+     * 読み込まないURLのパターンを追加したものを返す。
+     * @param patterns
+     * @return
+     */
+    public ResourcePolicy blockUrlPatterns(String... patterns){
+        return new ResourcePolicy(allowedResourceTypes, Stream.concat(blockedUrlPatterns.stream(), Arrays.stream(patterns)).toList());
+    }
+
+    /**
+     * 読み込みを許可するリソースの種類を追加したものを返す。
+     * @param resourceTypes
+     * @return
+     */
+    public ResourcePolicy allowResourceTypes(String... resourceTypes){
+        if(null==allowedResourceTypes){
+            return this;
+        }
+        return new ResourcePolicy(Stream.concat(allowedResourceTypes.stream(), Arrays.stream(resourceTypes)).collect(Collectors.toUnmodifiableSet()), blockedUrlPatterns);
+    }
+
+    public boolean restrictsResourceTypes(){
+        return null!=allowedResourceTypes;
+    }
+
+    public boolean isAllowedResourceType(String resourceType){
+        return null==allowedResourceTypes || allowedResourceTypes.contains(resourceType);
+    }
+}
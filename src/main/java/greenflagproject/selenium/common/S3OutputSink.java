@@ -0,0 +1,291 @@
+package greenflagproject.selenium.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * S3(およびMinIOなどのS3互換ストレージ)にアップロードする。
+ * AWS SDKは使わず、HttpClientとSignature Version 4でREST APIを呼び出す(Lambdaのイメージを小さく保つため)。
+ * パートサイズ以下のファイルはPUT Object、それより大きいファイルはマルチパートアップロードで、パートずつ読みながら送る。
+ * <p>
+ * 認証情報はLambdaの実行ロールの環境変数(AWS_ACCESS_KEY_ID、AWS_SECRET_ACCESS_KEY、AWS_SESSION_TOKEN)を使う。
+ * AWS_ACCESS_KEY_IDがない場合は署名しない(ローカルの疑似S3向け)。
+ */
+public class S3OutputSink implements OutputSink {
+    private final static Logger logger = LoggerFactory.getLogger(S3OutputSink.class);
+
+    public final static String ENV_OUTPUT_S3_BUCKET="OUTPUT_S3_BUCKET";
+
+    /**
+     * オブジェクトのキーの前に付ける文字列(フォルダ)。
+     */
+    public final static String ENV_OUTPUT_S3_PREFIX="OUTPUT_S3_PREFIX";
+
+    /**
+     * S3互換ストレージのURL(例: http://localhost:9000)。パス形式(endpoint/bucket/key)でアクセスする。
+     * デフォルトはhttps://s3.{region}.amazonaws.com。
+     */
+    public final static String ENV_OUTPUT_S3_ENDPOINT="OUTPUT_S3_ENDPOINT";
+
+    /**
+     * リージョン。デフォルトはLambdaの環境変数AWS_REGION、それもない場合はus-east-1。
+     */
+    public final static String ENV_OUTPUT_S3_REGION="OUTPUT_S3_REGION";
+
+    /**
+     * マルチパートアップロードのパートサイズ(MB)。S3の下限の5MB未満は5MBにする。
+     * デフォルトは8MB。
+     */
+    public final static String ENV_OUTPUT_S3_PART_SIZE_MB="OUTPUT_S3_PART_SIZE_MB";
+    public final static int DEFAULT_OUTPUT_S3_PART_SIZE_MB=8;
+    final static int MIN_PART_SIZE_MB=5;
+
+    final static String EMPTY_SHA256="e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private final static DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private final static Pattern UPLOAD_ID = Pattern.compile("<UploadId>(.*?)</UploadId>");
+
+    /**
+     * 認証情報
+     * @param accessKeyId nullの場合は署名しない
+     * @param secretAccessKey
+     * @param sessionToken 一時的な認証情報の場合のみ
+     */
+    public record Credentials(String accessKeyId, String secretAccessKey, String sessionToken){
+        public static Credentials fromEnv(){
+            return new Credentials(System.getenv("AWS_ACCESS_KEY_ID"), System.getenv("AWS_SECRET_ACCESS_KEY"), System.getenv("AWS_SESSION_TOKEN"));
+        }
+    }
+
+    public static S3OutputSink fromEnv(){
+        String bucket = CommonUtility.getEnv(ENV_OUTPUT_S3_BUCKET, "");
+        if(bucket.isEmpty()){
+            throw new RuntimeException(String.format("Env %sを指定してください。", ENV_OUTPUT_S3_BUCKET));
+        }
+        String region = CommonUtility.getEnv(ENV_OUTPUT_S3_REGION, CommonUtility.getEnv("AWS_REGION", "us-east-1"));
+        String endpoint = CommonUtility.getEnv(ENV_OUTPUT_S3_ENDPOINT, "https://s3."+region+".amazonaws.com");
+        int partSizeMB = Math.max(MIN_PART_SIZE_MB, CommonUtility.getIntEnv(ENV_OUTPUT_S3_PART_SIZE_MB, DEFAULT_OUTPUT_S3_PART_SIZE_MB));
+        return new S3OutputSink(URI.create(endpoint), region, bucket, CommonUtility.getEnv(ENV_OUTPUT_S3_PREFIX, ""), partSizeMB*1024*1024, Credentials.fromEnv());
+    }
+
+    protected final URI endpoint;
+    protected final String region;
+    protected final String bucket;
+    protected final String prefix;
+    protected final int partSize;
+    protected final Credentials credentials;
+    protected final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    /**
+     * @param endpoint
+     * @param region
+     * @param bucket
+     * @param prefix キーの前に付ける文字列
+     * @param partSize マルチパートアップロードのパートサイズ(bytes)。これ以下のファイルは1回のPUTで送る
+     * @param credentials
+     */
+    public S3OutputSink(URI endpoint, String region, String bucket, String prefix, int partSize, Credentials credentials){
+        this.endpoint = endpoint;
+        this.region = region;
+        this.bucket = bucket;
+        this.prefix = null==prefix ? "" : prefix;
+        this.partSize = partSize;
+        this.credentials = credentials;
+    }
+
+    @Override
+    public String write(String name, Path file) throws IOException {
+        String key = prefix+name;
+        long size = Files.size(file);
+        long startNanos = System.nanoTime();
+        if(size<=partSize){
+            send("PUT", key, Map.of(), Files.readAllBytes(file));
+        }
+        else {
+            uploadMultipart(key, file);
+        }
+        logger.info("S3にアップロードしました[s3://{}/{}] {}bytes {}ms", bucket, key, size, (System.nanoTime()-startNanos)/1_000_000);
+        return "s3://"+bucket+"/"+key;
+    }
+
+    /**
+     * マルチパートアップロード。パートサイズずつファイルを読んで送るので、メモリはパート1つ分しか使わない。
+     * 失敗した場合は、アップロード済みのパートが残らないように中止する。
+     */
+    protected void uploadMultipart(String key, Path file) throws IOException {
+        Matcher matcher = UPLOAD_ID.matcher(send("POST", key, Map.of("uploads", ""), new byte[0]).body());
+        if(!matcher.find()){
+            throw new IOException("マルチパートアップロードを開始できませんでした。"+key);
+        }
+        String uploadId = matcher.group(1);
+        try (InputStream input = Files.newInputStream(file)) {
+            StringBuilder complete = new StringBuilder("<CompleteMultipartUpload>");
+            byte[] buffer = new byte[partSize];
+            for(int partNumber=1; ; partNumber++){
+                int length = input.readNBytes(buffer, 0, partSize);
+                if(0==length){
+                    break;
+                }
+                byte[] part = length==partSize ? buffer : Arrays.copyOf(buffer, length);
+                HttpResponse<String> response = send("PUT", key, Map.of("partNumber", String.valueOf(partNumber), "uploadId", uploadId), part);
+                String etag = response.headers().firstValue("ETag").orElseThrow(() -> new IOException("パートのETagが返されませんでした。"+key));
+                complete.append("<Part><PartNumber>").append(partNumber).append("</PartNumber><ETag>").append(escapeXml(etag)).append("</ETag></Part>");
+            }
+            complete.append("</CompleteMultipartUpload>");
+            HttpResponse<String> response = send("POST", key, Map.of("uploadId", uploadId), complete.toString().getBytes(StandardCharsets.UTF_8));
+            if(response.body().contains("<Error>")){   //CompleteMultipartUploadは200でエラーを返すことがある
+                throw new IOException("マルチパートアップロードを完了できませんでした。"+response.body());
+            }
+        }
+        catch (IOException | RuntimeException e){
+            try {
+                send("DELETE", key, Map.of("uploadId", uploadId), new byte[0]);
+            }
+            catch (IOException | RuntimeException abortException){
+                e.addSuppressed(abortException);
+            }
+            throw e;
+        }
+    }
+
+    protected HttpResponse<String> send(String method, String key, Map<String, String> query, byte[] body) throws IOException {
+        String path = (endpoint.getPath().endsWith("/") ? endpoint.getPath() : endpoint.getPath()+"/")+encode(bucket, false)+"/"+encode(key, false);
+        String canonicalQuery = canonicalQuery(query);
+        URI uri = URI.create(endpoint.getScheme()+"://"+endpoint.getRawAuthority()+path+(canonicalQuery.isEmpty() ? "" : "?"+canonicalQuery));
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMinutes(5))
+                .method(method, 0==body.length ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body));
+        sign(builder, method, uri, path, canonicalQuery, body);
+        try {
+            HttpResponse<String> response = httpClient.send(builder.build(), HttpResponse.BodyHandlers.ofString());
+            if(300<=response.statusCode()){
+                throw new IOException(String.format("S3がエラーを返しました。%s %s status:%d %s", method, uri, response.statusCode(), response.body()));
+            }
+            return response;
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("アップロードが中断されました。", e);
+        }
+    }
+
+    /**
+     * Signature Version 4のAuthorizationヘッダーを付ける。
+     */
+    protected void sign(HttpRequest.Builder builder, String method, URI uri, String path, String canonicalQuery, byte[] body) throws IOException {
+        String payloadHash = 0==body.length ? EMPTY_SHA256 : HexFormat.of().formatHex(sha256(body));
+        builder.header("x-amz-content-sha256", payloadHash);
+        if(null==credentials || null==credentials.accessKeyId() || credentials.accessKeyId().isEmpty()){
+            return;
+        }
+        String amzDate = now().format(AMZ_DATE);
+        String date = amzDate.substring(0, 8);
+        TreeMap<String, String> headers = new TreeMap<>();
+        headers.put("host", -1==uri.getPort() ? uri.getHost() : uri.getHost()+":"+uri.getPort());
+        headers.put("x-amz-content-sha256", payloadHash);
+        headers.put("x-amz-date", amzDate);
+        if(null!=credentials.sessionToken() && !credentials.sessionToken().isEmpty()){
+            headers.put("x-amz-security-token", credentials.sessionToken());
+        }
+        StringBuilder canonicalHeaders = new StringBuilder();
+        headers.forEach((name, value) -> canonicalHeaders.append(name).append(':').append(value.trim()).append('\n'));
+        String signedHeaders = String.join(";", headers.keySet());
+        String canonicalRequest = String.join("\n", method, path, canonicalQuery, canonicalHeaders.toString(), signedHeaders, payloadHash);
+        String scope = date+"/"+region+"/s3/aws4_request";
+        String stringToSign = String.join("\n", "AWS4-HMAC-SHA256", amzDate, scope,
+                HexFormat.of().formatHex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8))));
+        byte[] key = hmac(("AWS4"+credentials.secretAccessKey()).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        String signature = HexFormat.of().formatHex(hmac(key, stringToSign));
+        builder.header("x-amz-date", amzDate);
+        if(headers.containsKey("x-amz-security-token")){
+            builder.header("x-amz-security-token", credentials.sessionToken());
+        }
+        builder.header("Authorization", String.format("AWS4-HMAC-SHA256 Credential=%s/%s, SignedHeaders=%s, Signature=%s",
+                credentials.accessKeyId(), scope, signedHeaders, signature));
+    }
+
+    protected ZonedDateTime now(){
+        return ZonedDateTime.now(ZoneOffset.UTC);
+    }
+
+    static String canonicalQuery(Map<String, String> query){
+        StringJoiner joiner = new StringJoiner("&");
+        new TreeMap<>(query).forEach((name, value) -> joiner.add(encode(name, true)+"="+encode(value, true)));
+        return joiner.toString();
+    }
+
+    /**
+     * RFC 3986の非予約文字以外をエンコードする(SigV4の規則)。
+     * @param value
+     * @param encodeSlash キーのパスでは「/」をそのまま残す
+     * @return
+     */
+    static String encode(String value, boolean encodeSlash){
+        StringBuilder builder = new StringBuilder();
+        for(byte b : value.getBytes(StandardCharsets.UTF_8)){
+            char c = (char) (b & 0xff);
+            if((c>='A' && c<='Z') || (c>='a' && c<='z') || (c>='0' && c<='9') || c=='-' || c=='_' || c=='.' || c=='~' || (c=='/' && !encodeSlash)){
+                builder.append(c);
+            }
+            else {
+                builder.append('%').append(String.format("%02X", b & 0xff));
+            }
+        }
+        return builder.toString();
+    }
+
+    static String escapeXml(String value){
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static byte[] sha256(byte[] data) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        }
+        catch (GeneralSecurityException e){
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException e){
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        httpClient.close();
+    }
+}
@@ -0,0 +1,76 @@
+package greenflagproject.selenium.common;
+
+import org.openqa.selenium.remote.RemoteWebDriver;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * 1つのWebDriverのセッションを複数のWebSiteControlDriver(ブラウザコンテキスト)で共有するための排他制御。
+ * WebDriverのコマンドは「今のウィンドウ」に対して実行されるため、コマンドの前に呼び出し元のウィンドウに切り替え、
+ * 切り替えからコマンドの完了までを1つのロックで直列にする。
+ * ページの読み込みやファイルのダウンロードはブラウザ内で並行して進むので、直列になるのはコマンドの送受信のみ。
+ */
+class SessionGuard {
+    private final RemoteWebDriver driver;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Set<String> contextHandles = ConcurrentHashMap.newKeySet();
+    private String currentHandle;
+
+    SessionGuard(RemoteWebDriver driver, String currentHandle){
+        this.driver = driver;
+        this.currentHandle = currentHandle;
+    }
+
+    /**
+     * ロックを取得し、windowHandleのウィンドウに切り替えてからactionを実行する。
+     * 同じスレッドからの入れ子の呼び出しはそのまま実行する。
+     * @param windowHandle nullの場合は切り替えない
+     * @param action
+     * @return
+     * @param <T>
+     */
+    <T> T run(String windowHandle, Supplier<T> action){
+        lock.lock();
+        try {
+            if(null!=windowHandle && !windowHandle.equals(currentHandle)){
+                currentHandle = null;   //切り替えに失敗した場合は、次の呼び出しで切り替えなおす
+                driver.switchTo().window(windowHandle);
+                currentHandle = windowHandle;
+            }
+            return action.get();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * run()の中でウィンドウを直接切り替えた場合に、今のウィンドウを設定する。
+     * @param windowHandle 不明な場合はnull
+     */
+    void setCurrentHandle(String windowHandle){
+        currentHandle = windowHandle;
+    }
+
+    void addContextHandle(String windowHandle){
+        contextHandles.add(windowHandle);
+    }
+
+    void removeContextHandle(String windowHandle){
+        contextHandles.remove(windowHandle);
+        if(windowHandle.equals(currentHandle)){
+            currentHandle = null;
+        }
+    }
+
+    /**
+     * ブラウザコンテキストのウィンドウ。共有元のreset()で閉じないようにする。
+     * @return
+     */
+    Set<String> getContextHandles(){
+        return Set.copyOf(contextHandles);
+    }
+}
@@ -0,0 +1,131 @@
+package greenflagproject.selenium.common;
+
+import org.openqa.selenium.json.Json;
+import org.openqa.selenium.json.JsonOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 起動の各フェーズ(JVM起動からhandlerのロード、ChromeOptionsの作成、DriverServiceの起動、セッションの作成、最初のget()、execute())の時間を記録し、
+ * invocation毎にCloudWatch Embedded Metric Format(EMF)のJSONを1行、標準出力に出力する。
+ * Lambdaでは標準出力のEMFがそのままCloudWatchのメトリクスになるので、ChromiumやSeleniumの更新後の起動時間の変化をグラフで確認できる。
+ * ローカルでも同じJSONが出力されるので、そのまま確認できる。
+ */
+public class StartupMetrics {
+    private final static Logger logger = LoggerFactory.getLogger(StartupMetrics.class);
+
+    /**
+     * 起動時間のメトリクスを出力するかの指定。
+     * デフォルトはtrue。
+     */
+    public final static String ENV_STARTUP_METRICS_ENABLED="STARTUP_METRICS_ENABLED";
+    public final static boolean DEFAULT_STARTUP_METRICS_ENABLED=true;
+
+    /**
+     * メトリクスのNamespace。
+     * デフォルトはAutoWebOperator。
+     */
+    public final static String ENV_METRICS_NAMESPACE="METRICS_NAMESPACE";
+    public final static String DEFAULT_METRICS_NAMESPACE="AutoWebOperator";
+
+    public final static String PHASE_JVM_TO_HANDLER_LOAD="JvmToHandlerLoad";
+    public final static String PHASE_BROWSER_OPTIONS="BrowserOptions";
+    public final static String PHASE_PROFILE_COPY="ProfileCopy";
+    public final static String PHASE_DRIVER_SERVICE_START="DriverServiceStart";
+    public final static String PHASE_SESSION_CREATE="SessionCreate";
+    public final static String PHASE_FIRST_GET="FirstGet";
+    public final static String PHASE_EXECUTE="Execute";
+
+    private final static Map<String, Long> phaseMillis = new LinkedHashMap<>();
+    private static boolean coldStart=true;
+
+    public static boolean isEnabled(){
+        return CommonUtility.getBooleanEnv(ENV_STARTUP_METRICS_ENABLED, DEFAULT_STARTUP_METRICS_ENABLED);
+    }
+
+    /**
+     * JVMの起動からhandler Classのロードまでの時間を記録する。handler Classのstatic初期化で呼び出す。
+     */
+    public static void recordHandlerLoaded(){
+        long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+        record(PHASE_JVM_TO_HANDLER_LOAD, System.currentTimeMillis()-jvmStartMillis);
+    }
+
+    /**
+     * startNanos(System.nanoTime())から現在までの時間をフェーズの時間として記録する。
+     * @param phase
+     * @param startNanos
+     */
+    public static void recordSince(String phase, long startNanos){
+        record(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-startNanos));
+    }
+
+    public static synchronized void record(String phase, long millis){
+        phaseMillis.put(phase, millis);
+    }
+
+    /**
+     * actionを実行し、その時間をフェーズの時間として記録する。
+     * @param phase
+     * @param action
+     * @return actionの戻り値
+     * @param <T>
+     */
+    public static <T> T time(String phase, Supplier<T> action){
+        long startNanos = System.nanoTime();
+        try {
+            return action.get();
+        }
+        finally {
+            recordSince(phase, startNanos);
+        }
+    }
+
+    /**
+     * 記録したフェーズの時間をEMFのJSONで標準出力に出力し、記録を消去する。
+     * JVMで最初のinvocationはStartType=cold、以降はwarmとして出力する。
+     * @param functionName
+     */
+    public static void emit(String functionName){
+        Map<String, Long> phases;
+        boolean cold;
+        synchronized (StartupMetrics.class){
+            phases = new LinkedHashMap<>(phaseMillis);
+            phaseMillis.clear();
+            cold = coldStart;
+            coldStart = false;
+        }
+        if(!isEnabled()){
+            return;
+        }
+        String startType = cold ? "cold" : "warm";
+        List<Map<String, Object>> metrics = new ArrayList<>();
+        for(String phase : phases.keySet()){
+            metrics.add(Map.of("Name", phase, "Unit", "Milliseconds"));
+        }
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("_aws", Map.of(
+                "Timestamp", System.currentTimeMillis(),
+                "CloudWatchMetrics", List.of(Map.of(
+                        "Namespace", CommonUtility.getEnv(ENV_METRICS_NAMESPACE, DEFAULT_METRICS_NAMESPACE),
+                        "Dimensions", List.of(List.of("FunctionName", "StartType")),
+                        "Metrics", metrics))));
+        root.put("FunctionName", functionName);
+        root.put("StartType", startType);
+        root.putAll(phases);
+
+        StringWriter writer = new StringWriter();
+        try (JsonOutput output = new Json().newOutput(writer)){
+            output.setPrettyPrint(false);   //EMFは1行で出力する必要がある
+            output.write(root);
+        }
+        System.out.println(writer);
+        logger.debug("起動時間のメトリクスを出力しました。StartType:{} {}", startType, phases);
+    }
+}
@@ -0,0 +1,145 @@
+package greenflagproject.selenium.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lambdaのinvocationをまたいでブラウザを使いまわすためのホルダー。
+ * warm containerではstatic変数が残るので、ここで保持しているWebSiteControlDriverを次のイベントでも利用する。
+ * イベントの開始時にヘルスチェックを行い、応答しない場合だけブラウザを起動し直す。
+ * また、Lambdaのinit phaseでブラウザを事前起動(prelaunch)し、最初のイベントでそれを受け取れるようにする。
+ */
+public class WarmDriverHolder {
+    private final static Logger logger = LoggerFactory.getLogger(WarmDriverHolder.class);
+
+    /**
+     * ブラウザを使いまわすかの指定。
+     * デフォルトはfalse(イベント毎にブラウザを起動・終了する)。
+     */
+    public final static String ENV_WARM_BROWSER_MODE="WARM_BROWSER_MODE";
+    public final static boolean DEFAULT_WARM_BROWSER_MODE=false;
+
+    /**
+     * Lambdaのinit phaseでブラウザを事前起動するかの指定。
+     * デフォルトはtrue。
+     */
+    public final static String ENV_PRELAUNCH_BROWSER="PRELAUNCH_BROWSER";
+    public final static boolean DEFAULT_PRELAUNCH_BROWSER=true;
+
+    private static WebSiteControlDriver warmDriver=null;
+
+    private static CompletableFuture<WebSiteControlDriver> prelaunchFuture=null;
+    private static volatile long prelaunchStartNanos=0;
+    private static volatile long prelaunchEndNanos=0;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(WarmDriverHolder::discard));    //コンテナ終了時にブラウザプロセスを残さない
+    }
+
+    public static boolean isWarmMode(){
+        return CommonUtility.getBooleanEnv(ENV_WARM_BROWSER_MODE, DEFAULT_WARM_BROWSER_MODE);
+    }
+
+    public static boolean isPrelaunchMode(){
+        return CommonUtility.getBooleanEnv(ENV_PRELAUNCH_BROWSER, DEFAULT_PRELAUNCH_BROWSER);
+    }
+
+    /**
+     * バックグラウンドのスレッドでブラウザの起動を開始する。
+     * Optionの作成、DriverServiceの起動、セッションの作成までを行うので、呼び出し元はその間にクラスロードなどを進められる。
+     * @param headlessMode
+     */
+    public static synchronized void prelaunch(boolean headlessMode){
+        if(null!=prelaunchFuture || null!=warmDriver){
+            return;
+        }
+        logger.info("ブラウザの事前起動を開始します。");
+        prelaunchStartNanos=System.nanoTime();
+        prelaunchFuture = CompletableFuture.supplyAsync(() -> {
+            try {
+                return WebSiteControlDriver.createDriver(headlessMode);
+            }
+            finally {
+                prelaunchEndNanos=System.nanoTime();
+            }
+        }, runnable -> {
+            Thread thread = new Thread(runnable, "browser-prelaunch");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * 事前起動したブラウザを受け取る。起動が終わっていない場合は残りの時間だけ待つ。
+     * @return 事前起動していない、もしくは起動に失敗した場合はnull
+     */
+    public static synchronized WebSiteControlDriver takePrelaunched(){
+        if(null==prelaunchFuture){
+            return null;
+        }
+        CompletableFuture<WebSiteControlDriver> future = prelaunchFuture;
+        prelaunchFuture=null;
+        long waitStartNanos=System.nanoTime();
+        try {
+            WebSiteControlDriver driver = future.join();
+            long startupMillis = TimeUnit.NANOSECONDS.toMillis(prelaunchEndNanos-prelaunchStartNanos);
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-waitStartNanos);
+            logger.info("事前起動したブラウザを利用します。起動時間:{}ms 待ち時間:{}ms 隠蔽できた時間:{}ms", startupMillis, waitMillis, Math.max(0, startupMillis-waitMillis));
+            return driver;
+        }
+        catch (CompletionException e){
+            logger.warn("ブラウザの事前起動に失敗しました。{}", e.getCause()==null?e.getMessage():e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 使いまわしているブラウザを返す。
+     * 保持しているブラウザが応答しない、もしくは初期化できない場合は、起動し直したものを返す。
+     * @param headlessMode
+     * @return
+     */
+    public static synchronized WebSiteControlDriver acquire(boolean headlessMode){
+        if(null!=warmDriver){
+            if(warmDriver.isHealthy()){
+                try {
+                    warmDriver.reset();
+                    logger.info("warm状態のブラウザを再利用します。");
+                    return warmDriver;
+                }
+                catch (RuntimeException e){
+                    logger.warn("ブラウザの初期化に失敗したため、起動し直します。{}", e.getMessage());
+                }
+            }
+            discard();
+        }
+        warmDriver = takePrelaunched();
+        if(null==warmDriver) {
+            warmDriver = WebSiteControlDriver.createDriver(headlessMode);
+        }
+        warmDriver.setReusable(true);
+        return warmDriver;
+    }
+
+    /**
+     * 保持しているブラウザを終了する。
+     */
+    public static synchronized void discard(){
+        if(null==warmDriver){
+            return;
+        }
+        try {
+            warmDriver.quit();
+        }
+        catch (RuntimeException e){
+            logger.warn("ブラウザの終了に失敗しました。{}", e.getMessage());
+        }
+        finally {
+            warmDriver=null;
+        }
+    }
+}
@@ -5,14 +5,23 @@ import org.openqa.selenium.*;
 import org.openqa.selenium.chrome.ChromeDriver;
 import org.openqa.selenium.chrome.ChromeDriverService;
 import org.openqa.selenium.chrome.ChromeOptions;
+import org.openqa.selenium.chromium.ChromiumDriver;
 import org.openqa.selenium.chromium.ChromiumDriverLogLevel;
+import org.openqa.selenium.chromium.HasCdp;
+import org.openqa.selenium.devtools.Command;
+import org.openqa.selenium.devtools.DevTools;
+import org.openqa.selenium.devtools.Event;
+import org.openqa.selenium.devtools.HasDevTools;
 import org.openqa.selenium.federatedcredentialmanagement.FederatedCredentialManagementDialog;
 import org.openqa.selenium.federatedcredentialmanagement.HasFederatedCredentialManagement;
 import org.openqa.selenium.firefox.*;
 import org.openqa.selenium.interactions.Interactive;
+import org.openqa.selenium.json.Json;
 import org.openqa.selenium.interactions.Sequence;
 import org.openqa.selenium.print.PrintOptions;
+import org.openqa.selenium.remote.Augmenter;
 import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.service.DriverService;
 import org.openqa.selenium.virtualauthenticator.HasVirtualAuthenticator;
 import org.openqa.selenium.virtualauthenticator.VirtualAuthenticator;
 import org.openqa.selenium.virtualauthenticator.VirtualAuthenticatorOptions;
@@ -20,11 +29,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.Supplier;
 
 public class WebSiteControlDriver implements WebDriver, JavascriptExecutor, HasCapabilities, HasDownloads, HasFederatedCredentialManagement, HasVirtualAuthenticator, Interactive, PrintsPage, TakesScreenshot {
     private final static Logger logger = LoggerFactory.getLogger(WebSiteControlDriver.class);
@@ -36,10 +50,74 @@ public class WebSiteControlDriver implements WebDriver, JavascriptExecutor, HasC
      */
     final static String ENV_EXECUTE_BROWSER="EXECUTE_BROWSER";
 
+    /**
+     * EXECUTE_BROWSER=remoteの場合に接続するWebDriverのURL(Selenium Grid、別ホストで起動したchromedriverなど)。
+     * 例: http://browser-host:4444
+     */
+    public final static String ENV_REMOTE_WEBDRIVER_URL="REMOTE_WEBDRIVER_URL";
+
+    /**
+     * EXECUTE_BROWSER=remoteの場合に接続する、起動済みのChromiumのDevToolsのアドレス(host:port、もしくはws://host:port/devtools/browser/...)。
+     * REMOTE_WEBDRIVER_URLがない場合は、ローカルのchromedriverからこのブラウザに接続する。
+     */
+    public final static String ENV_REMOTE_DEBUGGER_ADDRESS="REMOTE_DEBUGGER_ADDRESS";
+
     private RemoteWebDriver driver;
     protected String downloadFolderPath;
     public String getDownloadFolderPath(){return downloadFolderPath;}
 
+    /**
+     * WorkspaceManagerで作成したブラウザのフォルダ(プロファイル、起動時のダウンロードフォルダ)。quit()で削除できるようにする。
+     */
+    protected Path browserFolder=null;
+    public Path getBrowserFolder(){return browserFolder;}
+
+    /**
+     * trueの場合、Lambdaのinvocationをまたいでブラウザを使いまわす(warm mode)。
+     * AutoWebOperator.exec()の終了時にウィンドウを閉じないようにする。
+     */
+    protected boolean reusable=false;
+    public boolean isReusable(){return reusable;}
+    public void setReusable(boolean reusable){this.reusable=reusable;}
+
+    /**
+     * RemoteSessionPoolで作成したセッションの場合、quit()でプールに戻す。
+     */
+    private RemoteSessionPool sessionPool=null;
+    void setSessionPool(RemoteSessionPool sessionPool){this.sessionPool=sessionPool;}
+
+    /**
+     * 起動時間の計測用。ブラウザの起動後、もしくはreset()後の最初のget()か。
+     */
+    private boolean firstGetPending=true;
+
+    /**
+     * WebDriverのコマンドの計測。環境変数COMMAND_METRICS_ENABLEDがtrueの場合のみ作成する。
+     */
+    protected final CommandMetrics metrics = CommandMetrics.isEnabled() ? new CommandMetrics() : null;
+    public CommandMetrics getCommandMetrics(){return metrics;}
+
+    /**
+     * コマンドの計測結果を出力して消す。ブラウザを終了せずに使いまわす場合(warm mode、セッションのプール)は、
+     * invocation毎の内訳になるように、invocationの終わりに呼び出す。
+     */
+    public void printCommandMetrics(){
+        if(null!=metrics){
+            metrics.printSummary();
+            metrics.clear();
+        }
+    }
+
+    /**
+     * ブラウザコンテキスト(newContext())でセッションを共有している場合の排他制御。共有していない場合はnull。
+     */
+    protected SessionGuard sessionGuard=null;
+
+    /**
+     * セッションを共有している場合に、コマンドの前に切り替えるウィンドウ。
+     */
+    protected String windowHandle=null;
+
     public static WebSiteControlDriver createChromeDriver(){
         return WebSiteControlDriver.createChromeDriver(true);
     }
@@ -53,6 +131,7 @@ public class WebSiteControlDriver implements WebDriver, JavascriptExecutor, HasC
         return switch (executeBrowser.toLowerCase()){
             case "chrome","chromium","" ->WebSiteControlDriver.createChromeDriver(headlesMode);     //Chromeをデフォルトにしておく。環境変数未定義もこれ。
             case "firefox" ->WebSiteControlDriver.createFirefoxDriver(headlesMode);
+            case "remote" ->RemoteSessionPool.getInstance().acquire(headlesMode);  //起動済みのブラウザに接続する
             default ->{
                 logger.info("Env {}[{}]のDriver処理は定義されていません。",ENV_EXECUTE_BROWSER, executeBrowser);
                 yield WebSiteControlDriver.createChromeDriver(headlesMode);
@@ -62,10 +141,12 @@ public class WebSiteControlDriver implements WebDriver, JavascriptExecutor, HasC
 
     public static WebSiteControlDriver createChromeDriver(boolean headlesMode){
         logger.info("WebSiteControlDriver.createChromeDriver headlesmode:{}", headlesMode);
-        ChromeOptions options = new WuChromeOptions(headlesMode);
+        WuChromeOptions options = StartupMetrics.time(StartupMetrics.PHASE_BROWSER_OPTIONS, () -> new WuChromeOptions(headlesMode));
+        options.prepareProfileFolder();     //ProfileCopyとして別に計測する
         ChromeDriverService service = new ChromeDriverService.Builder().withLogLevel(ChromiumDriverLogLevel.fromString(getLogLevel(SELENIUM_LOGLEVEL,"ERROR"))).withLogOutput(System.out).build();  //ログをコンソールに出力
-        ChromeDriver chromeDriver = new ChromeDriver(service, options);
-        WebSiteControlDriver driver = new WebSiteControlDriver(chromeDriver);
+        startDriverService(service);
+        ChromeDriver chromeDriver = StartupMetrics.time(StartupMetrics.PHASE_SESSION_CREATE, () -> new ChromeDriver(service, options));
+        WebSiteControlDriver driver = new WebSiteControlDriver(chromeDriver, options.getDownloadFolderPath());
         return driver;
     }
 
@@ -74,19 +155,118 @@ public class WebSiteControlDriver implements WebDriver, JavascriptExecutor, HasC
     }
     public static WebSiteControlDriver createFirefoxDriver(boolean headlesMode){
         logger.info("WebSiteControlDriver.createFirefoxDriver headlesmode:{}", headlesMode);
-        FirefoxOptions options = new WuFirefoxOptions(headlesMode);
+        FirefoxOptions options = StartupMetrics.time(StartupMetrics.PHASE_BROWSER_OPTIONS, () -> new WuFirefoxOptions(headlesMode));
         FirefoxDriverService service = new GeckoDriverService.Builder().withLogLevel(FirefoxDriverLogLevel.fromString(getLogLevel(SELENIUM_LOGLEVEL,"ERROR"))).withLogOutput(System.out).build();  //ログをコンソールに出力
-        FirefoxDriver chromeDriver = new FirefoxDriver(service, options);
+        startDriverService(service);
+        FirefoxDriver chromeDriver = StartupMetrics.time(StartupMetrics.PHASE_SESSION_CREATE, () -> new FirefoxDriver(service, options));
         WebSiteControlDriver driver = new WebSiteControlDriver(chromeDriver);
         return driver;
     }
 
+    /**
+     * 起動済みのブラウザに接続する。ブラウザを起動しないので、起動時間がかからない。
+     * REMOTE_WEBDRIVER_URLがある場合はRemoteWebDriverでWuChromeOptionsと同じCapabilityのセッションを作成する
+     * (ブラウザのバイナリ、プロファイル、ダウンロードフォルダなどこのホストのファイルの指定は除く)。
+     * REMOTE_DEBUGGER_ADDRESSのみの場合は、ローカルのchromedriverからDevToolsのアドレスで既存のブラウザに接続する。
+     * この場合ブラウザは起動済みのため、起動オプションは使えない(ダウンロード先はDownloadTrackerがDevToolsで設定する)。
+     * <p>
+     * 通常はRemoteSessionPool経由で呼び出し、セッションを使いまわす。
+     * ダウンロードはリモートのホストに保存されるので、HttpFileDownloaderでダウンロードすること。
+     * @param headlesMode
+     * @return
+     */
+    public static WebSiteControlDriver createRemoteDriver(boolean headlesMode){
+        String remoteUrl = getEnv(ENV_REMOTE_WEBDRIVER_URL, "");
+        String debuggerAddress = toDebuggerAddress(getEnv(ENV_REMOTE_DEBUGGER_ADDRESS, ""));
+        logger.info("WebSiteControlDriver.createRemoteDriver url:[{}] debuggerAddress:[{}]", remoteUrl, debuggerAddress);
+        if(remoteUrl.isEmpty() && debuggerAddress.isEmpty()){
+            throw new RuntimeException(String.format("Env %sもしくは%sを指定してください。", ENV_REMOTE_WEBDRIVER_URL, ENV_REMOTE_DEBUGGER_ADDRESS));
+        }
+        ChromeOptions options;
+        if(debuggerAddress.isEmpty()){
+            options = StartupMetrics.time(StartupMetrics.PHASE_BROWSER_OPTIONS, () -> WuChromeOptions.forRemote(headlesMode));    //Gridのノードにはこのホストのバイナリやプロファイルがない
+        }
+        else {
+            options = new ChromeOptions();  //起動済みのブラウザには起動オプションを渡せない(chromedriverがエラーにする)
+            options.setExperimentalOption("debuggerAddress", debuggerAddress);
+        }
+        RemoteWebDriver remoteDriver;
+        if(remoteUrl.isEmpty()){
+            ChromeDriverService service = new ChromeDriverService.Builder().withLogLevel(ChromiumDriverLogLevel.fromString(getLogLevel(SELENIUM_LOGLEVEL,"ERROR"))).withLogOutput(System.out).build();
+            startDriverService(service);
+            remoteDriver = StartupMetrics.time(StartupMetrics.PHASE_SESSION_CREATE, () -> new ChromeDriver(service, options));
+        }
+        else {
+            remoteDriver = StartupMetrics.time(StartupMetrics.PHASE_SESSION_CREATE, () -> {
+                WebDriver webDriver = RemoteWebDriver.builder().oneOf(options).address(remoteUrl).build();
+                return (RemoteWebDriver) new Augmenter().augment(webDriver);    //se:cdpがあればDevToolsを使えるようにする
+            });
+        }
+        return options instanceof WuChromeOptions wuOptions ? new WebSiteControlDriver(remoteDriver, wuOptions.getDownloadFolderPath()) : new WebSiteControlDriver(remoteDriver);
+    }
+
+    /**
+     * DevToolsのwebsocketのURL(ws://host:port/devtools/browser/...)の場合は、chromedriverが受け付けるhost:portにする。
+     * @param address
+     * @return
+     */
+    protected static String toDebuggerAddress(String address){
+        if(address.startsWith("ws://") || address.startsWith("wss://") || address.startsWith("http://")){
+            URI uri = URI.create(address);
+            return uri.getHost()+":"+uri.getPort();
+        }
+        return address;
+    }
+
+    /**
+     * DriverService(chromedriver/geckodriver)のプロセスを起動する。
+     * セッション作成の中でも起動されるが、起動時間を分けて計測するために先に起動しておく。
+     * @param service
+     */
+    protected static void startDriverService(DriverService service){
+        long startNanos = System.nanoTime();
+        try {
+            service.start();
+        }
+        catch (IOException e){
+            throw new RuntimeException(e);
+        }
+        StartupMetrics.recordSince(StartupMetrics.PHASE_DRIVER_SERVICE_START, startNanos);
+    }
+
     public WebSiteControlDriver(RemoteWebDriver driver){
+        this(driver, createTmpDownloadFolder());
+    }
+
+    /**
+     * @param driver
+     * @param downloadFolderPath ブラウザの起動オプションに指定したダウンロードフォルダ
+     */
+    public WebSiteControlDriver(RemoteWebDriver driver, String downloadFolderPath){
         this.driver=driver;
         logger.info("OS Name:{}",System.getProperty("os.name"));
         logger.info("OS Arch:{}",System.getProperty("os.arch"));
         logger.info("OS Ver :{}",System.getProperty("os.version"));
-        downloadFolderPath=createTmpDownloadFolder();
+        this.downloadFolderPath=downloadFolderPath;
+        Path parent = Paths.get(downloadFolderPath).getParent();
+        if(WorkspaceManager.getInstance().isBrowserFolder(parent)){
+            browserFolder=parent;
+        }
+    }
+
+    /**
+     * 既存のセッションを共有するWebSiteControlDriver(ブラウザコンテキスト)を作成する。
+     * @param parent 共有元
+     * @param windowHandle コマンドの前に切り替えるウィンドウ
+     * @param downloadFolderPath
+     */
+    protected WebSiteControlDriver(WebSiteControlDriver parent, String windowHandle, String downloadFolderPath){
+        this.driver=parent.driver;
+        this.sessionGuard=parent.sessionGuard;
+        this.windowHandle=windowHandle;
+        this.downloadFolderPath=downloadFolderPath;
+        this.reusable=parent.reusable;
+        this.firstGetPending=false;    //ブラウザの起動時間には含めない
     }
 
     @Override
@@ -111,82 +291,204 @@ public class WebSiteControlDriver implements WebDriver, JavascriptExecutor, HasC
 
     @Override
     public @Nullable Object executeScript(String script, @Nullable Object... args) {
-        return driver.executeScript(script, args);
+        return call("executeScript", () -> driver.executeScript(script, args));
     }
 
     @Override
     public @Nullable Object executeAsyncScript(String script, @Nullable Object... args) {
-        return driver.executeAsyncScript(script, args);
+        return call("executeAsyncScript", () -> driver.executeAsyncScript(script, args));
     }
 
     @Override
     public Pdf print(PrintOptions printOptions) throws WebDriverException {
-        return driver.print(printOptions);
+        return call("print", () -> driver.print(printOptions));
     }
 
     @Override
     public <X> X getScreenshotAs(OutputType<X> target) throws WebDriverException {
-        return driver.getScreenshotAs(target);
+        return call("getScreenshotAs", () -> driver.getScreenshotAs(target));
     }
 
     @Override
     public void get(String url) {
-        driver.get(url);
+        if(firstGetPending){
+            firstGetPending=false;
+            StartupMetrics.time(StartupMetrics.PHASE_FIRST_GET, () -> call("get", () -> {
+                driver.get(url);
+                return null;
+            }));
+            return;
+        }
+        run("get", () -> driver.get(url));
     }
 
     @Override
     public @Nullable String getCurrentUrl() {
-        return driver.getCurrentUrl();
+        return call("getCurrentUrl", driver::getCurrentUrl);
     }
 
     @Override
     public @Nullable String getTitle() {
-        return driver.getTitle();
+        return call("getTitle", driver::getTitle);
     }
 
     @Override
     public List<WebElement> findElements(By by) {
-        return driver.findElements(by);
+        List<WebElement> elements = call("findElements", () -> driver.findElements(by));
+        return null==sessionGuard ? elements : GuardedWebElement.wrap(this, elements);
     }
 
     @Override
     public WebElement findElement(By by) {
-        return driver.findElement(by);
+        WebElement element = call("findElement", () -> driver.findElement(by));
+        return null==sessionGuard ? element : new GuardedWebElement(this, element);
     }
 
     @Override
     public @Nullable String getPageSource() {
-        return driver.getPageSource();
+        return call("getPageSource", driver::getPageSource);
     }
 
     @Override
     public void close() {
-        driver.close();
+        run("close", driver::close);
     }
 
     @Override
     public void quit() {
-        driver.quit();
+        if(null!=sessionPool && sessionPool.release(this)){   //プールのセッションは終了せずに次に使いまわす
+            printCommandMetrics();
+            return;
+        }
+        if(null!=downloadTracker){
+            downloadTracker.close();
+            downloadTracker=null;
+        }
+        if(null!=metrics){
+            metrics.printSummary();
+        }
+        try {
+            driver.quit();
+        }
+        finally {
+            WorkspaceManager.getInstance().releaseBrowserFolder(browserFolder);   //ブラウザのプロセスが終わったので、プロファイルは削除してよい
+        }
     }
 
     @Override
     public Set<String> getWindowHandles() {
-        return driver.getWindowHandles();
+        return call("getWindowHandles", driver::getWindowHandles);
     }
 
     @Override
     public String getWindowHandle() {
-        return driver.getWindowHandle();
+        return call("getWindowHandle", driver::getWindowHandle);
     }
 
     @Override
     public TargetLocator switchTo() {
-        return driver.switchTo();
+        TargetLocator locator = call("switchTo", driver::switchTo);
+        if(null==sessionGuard){
+            return locator;
+        }
+        return new TargetLocator() {    //ウィンドウを切り替えた場合は、以降のコマンドをそのウィンドウで実行する
+            @Override
+            public WebDriver frame(int index) {
+                guarded(() -> locator.frame(index));
+                return WebSiteControlDriver.this;
+            }
+
+            @Override
+            public WebDriver frame(String nameOrId) {
+                guarded(() -> locator.frame(nameOrId));
+                return WebSiteControlDriver.this;
+            }
+
+            @Override
+            public WebDriver frame(WebElement frameElement) {
+                WebElement element = frameElement instanceof WrapsElement wraps ? wraps.getWrappedElement() : frameElement;
+                guarded(() -> locator.frame(element));
+                return WebSiteControlDriver.this;
+            }
+
+            @Override
+            public WebDriver parentFrame() {
+                guarded(locator::parentFrame);
+                return WebSiteControlDriver.this;
+            }
+
+            @Override
+            public WebDriver window(String nameOrHandle) {
+                guarded(() -> {
+                    locator.window(nameOrHandle);
+                    windowHandle = driver.getWindowHandle();
+                    sessionGuard.setCurrentHandle(windowHandle);
+                    return null;
+                });
+                return WebSiteControlDriver.this;
+            }
+
+            @Override
+            public WebDriver newWindow(WindowType typeHint) {
+                guarded(() -> {
+                    locator.newWindow(typeHint);
+                    windowHandle = driver.getWindowHandle();
+                    sessionGuard.setCurrentHandle(windowHandle);
+                    return null;
+                });
+                return WebSiteControlDriver.this;
+            }
+
+            @Override
+            public WebDriver defaultContent() {
+                guarded(locator::defaultContent);
+                return WebSiteControlDriver.this;
+            }
+
+            @Override
+            public WebElement activeElement() {
+                return new GuardedWebElement(WebSiteControlDriver.this, guarded(locator::activeElement));
+            }
+
+            @Override
+            public Alert alert() {
+                return guarded(locator::alert);
+            }
+        };
     }
 
     @Override
     public Navigation navigate() {
-        return driver.navigate();
+        Navigation navigation = driver.navigate();
+        if(null==metrics && null==sessionGuard){
+            return navigation;
+        }
+        return new Navigation() {
+            @Override
+            public void back() {
+                run("navigate.back", navigation::back);
+            }
+
+            @Override
+            public void forward() {
+                run("navigate.forward", navigation::forward);
+            }
+
+            @Override
+            public void to(String url) {
+                run("navigate.to", () -> navigation.to(url));
+            }
+
+            @Override
+            public void to(URL url) {
+                run("navigate.to", () -> navigation.to(url));
+            }
+
+            @Override
+            public void refresh() {
+                run("navigate.refresh", navigation::refresh);
+            }
+        };
     }
 
     @Override
@@ -211,7 +513,7 @@ public class WebSiteControlDriver implements WebDriver, JavascriptExecutor, HasC
 
     @Override
     public void perform(Collection<Sequence> actions) {
-        driver.perform(actions);
+        run("perform", () -> driver.perform(actions));
     }
 
     @Override
@@ -229,14 +531,399 @@ public class WebSiteControlDriver implements WebDriver, JavascriptExecutor, HasC
         driver.removeVirtualAuthenticator(authenticator);
     }
 
+    /**
+     * WebDriverのコマンドを実行する。計測が有効な場合は時間を記録する。
+     * @param command
+     * @param action
+     * @return
+     * @param <T>
+     */
+    protected <T> T call(String command, Supplier<T> action){
+        if(null==metrics){
+            return guarded(action);
+        }
+        return guarded(() -> metrics.record(command, action));
+    }
+
+    /**
+     * セッションを共有している場合は、ロックを取得し、このWebSiteControlDriverのウィンドウに切り替えてからactionを実行する。
+     * @param action
+     * @return
+     * @param <T>
+     */
+    protected <T> T guarded(Supplier<T> action){
+        if(null==sessionGuard){
+            return action.get();
+        }
+        return sessionGuard.run(windowHandle, action);
+    }
+
+    /**
+     * DevToolsのコマンドをこのWebSiteControlDriverのウィンドウ(ブラウザコンテキスト)に対して実行する。
+     * @param command
+     * @param parameters
+     * @return
+     */
+    protected Map<String, Object> executeCdpCommand(String command, Map<String, Object> parameters){
+        if(!(driver instanceof HasCdp cdp)){
+            throw new RuntimeException("DevToolsのコマンドを実行できないブラウザです。"+command);
+        }
+        return guarded(() -> cdp.executeCdpCommand(command, parameters));
+    }
+
+    /**
+     * 同じブラウザのプロセス内に、Cookie・Storage・キャッシュ・ダウンロードフォルダを分けたブラウザコンテキストを作成する。
+     * 複数のAutoWebOperatorをそれぞれ別のコンテキストで同時に実行でき、ブラウザを複数起動するよりメモリが少なくて済む。
+     * <p>
+     * コンテキストのウィンドウ毎にWebDriverのコマンドを切り替えて実行するため、1つのセッション内のコマンドは直列になる
+     * (ページの読み込みやダウンロードは並行して進む)。別のコンテキストのコマンドが間に入るとフレームの選択は外れる。
+     * ChromeDriver(DevTools)を使えるChromium系のブラウザのみ。
+     * @return 使い終わったらquit()でコンテキストを破棄する(ブラウザは終了しない)
+     */
+    public synchronized BrowserContextDriver newContext(){
+        if(!(driver instanceof HasCdp)){
+            throw new RuntimeException("ブラウザコンテキストはChromium系のブラウザのみ作成できます。");
+        }
+        if(null==sessionGuard){
+            windowHandle = driver.getWindowHandle();
+            sessionGuard = new SessionGuard(driver, windowHandle);
+        }
+        String contextId = String.valueOf(executeCdpCommand("Target.createBrowserContext", Map.of("disposeOnDetach", false)).get("browserContextId"));
+        String downloadFolder;
+        try {
+            downloadFolder = createTmpFolder(Paths.get(downloadFolderPath).resolveSibling("context-"+contextId)).toString();  //共有元と同じ作業フォルダに作る
+            executeCdpCommand("Browser.setDownloadBehavior", Map.of(
+                    "behavior", "allow",
+                    "downloadPath", downloadFolder,
+                    "browserContextId", contextId,
+                    "eventsEnabled", false));   //イベントは共有元のDownloadTrackerに届くので、コンテキストはフォルダを監視する
+        }
+        catch (IOException | RuntimeException e){
+            disposeContext(contextId);
+            throw new RuntimeException("ブラウザコンテキストのダウンロードフォルダを設定できませんでした。", e);
+        }
+        String targetId = String.valueOf(executeCdpCommand("Target.createTarget", Map.of("url", "about:blank", "browserContextId", contextId)).get("targetId"));
+        String handle = guarded(() -> driver.getWindowHandles().stream()   //ChromeDriverのウィンドウハンドルはtargetId
+                .filter(h -> h.equals(targetId) || h.endsWith(targetId))
+                .findFirst().orElse(null));
+        if(null==handle){
+            disposeContext(contextId);
+            throw new RuntimeException("ブラウザコンテキストのウィンドウが見つかりませんでした。"+targetId);
+        }
+        sessionGuard.addContextHandle(handle);
+        logger.info("ブラウザコンテキストを作成しました[{}] ダウンロードフォルダ:[{}]", contextId, downloadFolder);
+        return new BrowserContextDriver(this, contextId, handle, downloadFolder);
+    }
+
+    /**
+     * ブラウザコンテキストを、そのウィンドウとCookieなどのデータごと破棄する。
+     * @param contextId
+     */
+    void disposeContext(String contextId){
+        executeCdpCommand("Target.disposeBrowserContext", Map.of("browserContextId", contextId));
+    }
+
+    protected void run(String command, Runnable action){
+        call(command, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Chromium系のブラウザか。リモートのブラウザの場合はCapabilityのbrowserNameで判定する。
+     * @return
+     */
+    public boolean isChromium(){
+        if(driver instanceof ChromiumDriver){
+            return true;
+        }
+        String browserName = String.valueOf(driver.getCapabilities().getBrowserName()).toLowerCase();
+        return browserName.contains("chrom") || browserName.contains("edge");
+    }
+
+    /**
+     * ChromiumのDevToolsのセッションを返す。
+     * @return Chromium以外、もしくはDevToolsに接続できない場合はempty
+     */
+    public Optional<DevTools> getDevTools(){
+        if(isChromium() && driver instanceof HasDevTools hasDevTools){
+            try {
+                Optional<DevTools> devTools = hasDevTools.maybeGetDevTools();
+                devTools.ifPresent(DevTools::createSessionIfThereIsNotOne);
+                return devTools;
+            }
+            catch (RuntimeException e){
+                logger.warn("DevToolsに接続できませんでした。{}", e.getMessage());
+            }
+        }
+        return Optional.empty();
+    }
+
+    protected DownloadTracker downloadTracker=null;
+
+    /**
+     * ダウンロード完了を検知するDownloadTrackerを返す。初回の呼び出しで検知を始める。
+     * DevToolsが使える場合はダウンロードイベントで、使えない場合はダウンロードフォルダのWatchServiceで検知する。
+     * @param fileFilter ダウンロード途中のファイルなどを除くフィルタ
+     * @return
+     */
+    public synchronized DownloadTracker getDownloadTracker(FileFilter fileFilter){
+        if(null==downloadTracker){
+            DownloadTracker tracker = new DownloadTracker(Paths.get(downloadFolderPath), fileFilter);
+            Optional<DevTools> devTools = getDevTools();
+            if(devTools.isEmpty() || !tracker.startWithDevTools(devTools.get())){
+                try {
+                    tracker.startWithWatchService();
+                }
+                catch (IOException e){
+                    throw new RuntimeException("ダウンロードフォルダを監視できませんでした。", e);
+                }
+            }
+            downloadTracker=tracker;
+        }
+        return downloadTracker;
+    }
+
+    protected volatile ResourcePolicy resourcePolicy=ResourcePolicy.ALLOW_ALL;
+    private boolean requestInterceptionListening=false;
+
+    /**
+     * ブラウザに読み込ませるリソースを制限する。
+     * URLのパターンはDevToolsのNetwork.setBlockedURLsで、リソースの種類はFetch.requestPausedで1リクエストずつ判定する。
+     * Chromium以外では何もしない。
+     * @param policy
+     */
+    public synchronized void applyResourcePolicy(ResourcePolicy policy){
+        Optional<DevTools> devToolsOptional = getDevTools();
+        if(devToolsOptional.isEmpty()){
+            logger.info("DevToolsが使えないため、リソースの制限は行いません。");
+            return;
+        }
+        DevTools devTools = devToolsOptional.get();
+        resourcePolicy = policy;
+        devTools.send(new Command<Void>("Network.enable", Map.of()));
+        devTools.send(new Command<Void>("Network.setBlockedURLs", Map.of("urls", policy.blockedUrlPatterns())));
+        if(policy.restrictsResourceTypes()){
+            if(!requestInterceptionListening){
+                devTools.addListener(new Event<>("Fetch.requestPaused", input -> input.<Map<String, Object>>read(Json.MAP_TYPE)), event -> {
+                    String requestId = String.valueOf(event.get("requestId"));
+                    try {
+                        if(resourcePolicy.isAllowedResourceType(String.valueOf(event.get("resourceType")))){
+                            devTools.send(new Command<Void>("Fetch.continueRequest", Map.of("requestId", requestId)));
+                        }
+                        else {
+                            devTools.send(new Command<Void>("Fetch.failRequest", Map.of("requestId", requestId, "errorReason", "BlockedByClient")));
+                        }
+                    }
+                    catch (RuntimeException e){
+                        logger.debug("リクエストの継続・中止に失敗しました(ページ遷移で破棄されたリクエスト)。{}", e.getMessage());
+                    }
+                });
+                requestInterceptionListening=true;
+            }
+            devTools.send(new Command<Void>("Fetch.enable", Map.of("patterns", List.of(Map.of("urlPattern", "*", "requestStage", "Request")))));
+        }
+        else {
+            devTools.send(new Command<Void>("Fetch.disable", Map.of()));
+        }
+        logger.info("リソースの制限を設定しました。許可する種類:{} 読み込まないURL:{}", policy.allowedResourceTypes(), policy.blockedUrlPatterns());
+    }
+
+    /**
+     * ブラウザが応答するかを確認する。
+     * セッションが切れている、ブラウザプロセスが落ちているなど、操作できない場合はfalseを返す。
+     * @return
+     */
+    public boolean isHealthy(){
+        try {
+            if(null==driver.getSessionId()){
+                return false;
+            }
+            return guarded(() -> {
+                var handles = getOwnWindowHandles();
+                if(handles.isEmpty()){
+                    return false;
+                }
+                switchToWindow(handles.contains(windowHandle) ? windowHandle : handles.getFirst());
+                driver.executeScript("return document.readyState;");
+                return true;
+            });
+        }
+        catch (RuntimeException e){
+            logger.warn("ブラウザのヘルスチェックに失敗しました。{}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 次の処理のためにブラウザを初期状態に戻す。
+     * 余分なウィンドウを閉じ、Cookie・Storageを消去し、ダウンロードフォルダを空にする。
+     */
+    public void reset(){
+        reset(true);
+    }
+
+    /**
+     * 次の処理のためにブラウザを初期状態に戻す。
+     * @param clearDownloadFolder falseの場合、ダウンロードしたファイルは残す(バッチの途中のジョブの間など)
+     */
+    public void reset(boolean clearDownloadFolder){
+        guarded(() -> {
+            List<String> handles = getOwnWindowHandles();
+            String mainHandle = handles.contains(windowHandle) ? windowHandle : handles.getFirst();
+            for(String handle : handles){
+                if(!handle.equals(mainHandle)){
+                    switchToWindow(handle);
+                    driver.close();
+                }
+            }
+            switchToWindow(mainHandle);
+            if(null!=sessionGuard){
+                windowHandle = mainHandle;
+            }
+            try {
+                driver.executeScript("try{window.localStorage.clear();window.sessionStorage.clear();}catch(e){}");
+            }
+            catch (RuntimeException e){
+                logger.debug("Storageの消去に失敗しました。{}", e.getMessage());
+            }
+            driver.manage().deleteAllCookies();    //表示中のドメインのCookieのみ消える
+            if(driver instanceof HasCdp cdp){
+                cdp.executeCdpCommand("Network.clearBrowserCookies", Map.of());  //Chromiumは全ドメインのCookieを消す(ブラウザコンテキストのCookieは消えない)
+            }
+            driver.get("about:blank");
+            return null;
+        });
+        firstGetPending=true;
+        if(null!=downloadTracker){
+            downloadTracker.clear();
+        }
+        if(clearDownloadFolder) {
+            clearDownloadFolder();
+        }
+    }
+
+    /**
+     * ブラウザのセッション(Cookie、User-Agent、表示中のURL)を取り出す。
+     * Chromiumの場合はDevToolsで全ドメインのCookieを取得し、それ以外は表示中のドメインのCookieを取得する。
+     * @return
+     */
+    public BrowserSession exportSession(){
+        List<HttpCookie> cookies = new ArrayList<>();
+        if(driver instanceof HasCdp){
+            Map<String, Object> result = executeCdpCommand("Network.getAllCookies", Map.of());    //ブラウザコンテキストの場合はそのコンテキストのCookie
+            for(Object o : (List<?>) result.getOrDefault("cookies", List.of())){
+                Map<?, ?> c = (Map<?, ?>) o;
+                HttpCookie cookie = new HttpCookie(String.valueOf(c.get("name")), String.valueOf(c.get("value")));
+                cookie.setDomain(String.valueOf(c.get("domain")));
+                cookie.setPath(String.valueOf(c.get("path")));
+                cookie.setSecure(Boolean.TRUE.equals(c.get("secure")));
+                cookie.setHttpOnly(Boolean.TRUE.equals(c.get("httpOnly")));
+                cookie.setVersion(0);
+                cookies.add(cookie);
+            }
+        }
+        else {
+            for(Cookie c : guarded(() -> driver.manage().getCookies())){
+                HttpCookie cookie = new HttpCookie(c.getName(), c.getValue());
+                cookie.setDomain(c.getDomain());
+                cookie.setPath(c.getPath());
+                cookie.setSecure(c.isSecure());
+                cookie.setHttpOnly(c.isHttpOnly());
+                cookie.setVersion(0);
+                cookies.add(cookie);
+            }
+        }
+        String userAgent = String.valueOf(guarded(() -> driver.executeScript("return navigator.userAgent;")));
+        logger.info("ブラウザのセッションを取り出しました。Cookie:{}件", cookies.size());
+        return new BrowserSession(cookies, userAgent, guarded(driver::getCurrentUrl));
+    }
+
+    /**
+     * このWebSiteControlDriverのウィンドウ。セッションを共有している場合、共有先のブラウザコンテキストのウィンドウを除く。
+     * guarded()の中で呼び出すこと。
+     * @return
+     */
+    private List<String> getOwnWindowHandles(){
+        List<String> handles = new ArrayList<>(driver.getWindowHandles());
+        if(null!=sessionGuard){
+            handles.removeAll(sessionGuard.getContextHandles());
+        }
+        return handles;
+    }
+
+    /**
+     * guarded()の中でウィンドウを切り替える。
+     * @param handle
+     */
+    private void switchToWindow(String handle){
+        driver.switchTo().window(handle);
+        if(null!=sessionGuard){
+            sessionGuard.setCurrentHandle(handle);
+        }
+    }
+
+    /**
+     * ブラウザのセッションを引き継いだHttpFileDownloaderを作成する。
+     * ログインが必要なファイルでも、ブラウザのダウンロードマネージャーを使わずに同時に複数ダウンロードできる。
+     * @return
+     */
+    public HttpFileDownloader createSessionDownloader(){
+        return new HttpFileDownloader(exportSession());
+    }
+
+    /**
+     * ダウンロードフォルダ内のファイルを削除する。フォルダ自体は残す。
+     */
+    public void clearDownloadFolder(){
+        File[] files = new File(downloadFolderPath).listFiles();
+        if(null==files){
+            return;
+        }
+        for(File file : files){
+            if(!file.delete()){
+                logger.warn("ダウンロードフォルダのファイルを削除できませんでした[{}]", file);
+            }
+        }
+    }
+
+    /**
+     * ブラウザの起動毎のダウンロードフォルダを作成する。
+     * 固定のフォルダだとwarm containerで前回までのファイルが残り続けるので、WorkspaceManagerのブラウザのフォルダ内に作る。
+     * @return
+     */
     public static String createTmpDownloadFolder(){
+        return WorkspaceManager.getDownloadFolder(WorkspaceManager.getInstance().createBrowserFolder()).toString();
+    }
+
+    /**
+     * ダウンロードフォルダを変更する(Lambdaのinvocation毎の作業フォルダにするなど)。
+     * Chromiumの場合はDevToolsでブラウザの保存先も変更する。それ以外のブラウザは起動後に保存先を変更できないので、変更しない。
+     * @param folder
+     * @return 変更した場合はtrue
+     */
+    public synchronized boolean changeDownloadFolder(String folder){
+        if(!(driver instanceof HasCdp)){
+            logger.info("起動後にダウンロードフォルダを変更できないブラウザです。[{}]を使います。", downloadFolderPath);
+            return false;
+        }
         try {
-            File tmpFolder= createTmpFolder("AutoWebOperator");
-            tmpFolder.deleteOnExit();
-            return tmpFolder.toString();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            Files.createDirectories(Paths.get(folder));
+            if(null!=downloadTracker){
+                downloadTracker.changeDownloadFolder(getDevTools().orElse(null), Paths.get(folder));
+            }
+            else {
+                executeCdpCommand("Browser.setDownloadBehavior", Map.of("behavior", "allow", "downloadPath", folder));
+            }
+        }
+        catch (IOException | RuntimeException e){
+            logger.warn("ダウンロードフォルダを変更できませんでした。[{}]を使います。{}", downloadFolderPath, e.getMessage());
+            return false;
         }
+        downloadFolderPath=folder;
+        logger.info("ダウンロードフォルダを変更しました[{}]", folder);
+        return true;
     }
 
     protected static String getLogLevel(String envKey, String defaultValue){
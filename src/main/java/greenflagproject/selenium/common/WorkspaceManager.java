@@ -0,0 +1,411 @@
+package greenflagproject.selenium.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * /tmp(java.io.tmpdir)の作業フォルダを管理する。
+ * Lambdaのinvocation毎のフォルダ(ダウンロードしたファイル)と、ブラウザの起動毎のフォルダ(プロファイル、起動時のダウンロードフォルダ)を
+ * java.io.tmpdir/AutoWebOperator-workspaceの下に作り、使用中かどうかを記録する。
+ * <p>
+ * warm containerではdeleteOnExit()が実行されないので、invocationの終了時にバックグラウンドで使用量を集計し、
+ * 上限を超えている場合は使用中でないフォルダを更新日時の古いものから削除する。
+ * ダウンロードキャッシュとチェックポイントは使用量には含めるが、それぞれの上限・保持期間で削除されるので、ここでは削除しない。
+ */
+public class WorkspaceManager {
+    private final static Logger logger = LoggerFactory.getLogger(WorkspaceManager.class);
+
+    /**
+     * 作業フォルダ(ダウンロードキャッシュなどを含む)に使う/tmp領域の割合(%)。
+     * デフォルトは70%。
+     */
+    public final static String ENV_WORKSPACE_MAX_TMP_PERCENT="WORKSPACE_MAX_TMP_PERCENT";
+    public final static int DEFAULT_WORKSPACE_MAX_TMP_PERCENT=70;
+
+    /**
+     * Seleniumのキャッシュ(selenium-managerのドライバなど)のフォルダ。
+     */
+    final static String ENV_SE_CACHE_PATH="SE_CACHE_PATH";
+
+    final static String WORKSPACE_FOLDER_NAME="AutoWebOperator-workspace";
+    final static String INVOCATIONS_FOLDER_NAME="invocations";
+    final static String BROWSERS_FOLDER_NAME="browsers";
+    final static String DOWNLOAD_FOLDER_NAME="downloads";
+    final static String PROFILE_FOLDER_NAME="profile";
+
+    public final static String AREA_INVOCATIONS="invocations";
+    public final static String AREA_BROWSERS="browsers";
+    public final static String AREA_DOWNLOAD_CACHE="downloadCache";
+    public final static String AREA_CHECKPOINT="checkpoint";
+    public final static String AREA_SELENIUM_CACHE="seleniumCache";
+
+    private final static DateTimeFormatter FOLDER_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private static WorkspaceManager instance=null;
+
+    /**
+     * java.io.tmpdirの作業フォルダを返す。warm containerでは前回のinvocationのフォルダを引き継ぐ。
+     * @return
+     */
+    public static synchronized WorkspaceManager getInstance(){
+        if(null==instance){
+            Path tmpFolder = Paths.get(System.getProperty("java.io.tmpdir"));
+            int percent = CommonUtility.getIntEnv(ENV_WORKSPACE_MAX_TMP_PERCENT, DEFAULT_WORKSPACE_MAX_TMP_PERCENT);
+            long quotaBytes;
+            try {
+                quotaBytes = Files.getFileStore(tmpFolder).getTotalSpace()/100*percent;
+            }
+            catch (IOException e){
+                logger.warn("/tmp領域のサイズを取得できませんでした。作業フォルダの上限なしで実行します。{}", e.getMessage());
+                quotaBytes = Long.MAX_VALUE;
+            }
+            instance = new WorkspaceManager(tmpFolder.resolve(WORKSPACE_FOLDER_NAME), quotaBytes);
+        }
+        return instance;
+    }
+
+    protected final Path root;
+    protected final Path invocationsFolder;
+    protected final Path browsersFolder;
+    protected final long quotaBytes;
+
+    /**
+     * 使用中のフォルダ(実行中のinvocation、起動中のブラウザ)。削除の対象にしない。
+     */
+    protected final Set<Path> activeFolders = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService cleanupExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "workspace-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean cleanupPending = new AtomicBoolean(false);
+
+    public WorkspaceManager(Path root, long quotaBytes){
+        this.root = root;
+        this.invocationsFolder = root.resolve(INVOCATIONS_FOLDER_NAME);
+        this.browsersFolder = root.resolve(BROWSERS_FOLDER_NAME);
+        this.quotaBytes = quotaBytes;
+    }
+
+    public Path getRoot(){
+        return root;
+    }
+
+    /**
+     * invocationの作業フォルダを作成する。endInvocation()を呼び出すまでは削除しない。
+     * @param requestId LambdaのリクエストID(フォルダ名に含める)。ない場合はnull
+     * @return
+     */
+    public Path beginInvocation(String requestId){
+        Path folder = invocationsFolder.resolve(newFolderName(requestId));
+        try {
+            Files.createDirectories(folder.resolve(DOWNLOAD_FOLDER_NAME));
+        }
+        catch (IOException e){
+            throw new RuntimeException("作業フォルダを作成できませんでした。"+folder, e);
+        }
+        activeFolders.add(folder);
+        logger.info("作業フォルダを作成しました[{}]", folder);
+        return folder;
+    }
+
+    /**
+     * invocationの作業フォルダを使用中でなくする。フォルダは上限を超えるまで残す(失敗したジョブの再実行でチェックポイントのファイルを使えるように)。
+     * 使用量の集計と削除はバックグラウンドで行うので、レスポンスを遅らせない。
+     * @param folder beginInvocation()で作成したフォルダ
+     */
+    public void endInvocation(Path folder){
+        if(null==folder){
+            return;
+        }
+        activeFolders.remove(folder);
+        cleanupAsync();
+    }
+
+    /**
+     * ブラウザの起動毎のフォルダ(プロファイル、ダウンロードフォルダ)を作成する。releaseBrowserFolder()を呼び出すまでは削除しない。
+     * @return
+     */
+    public Path createBrowserFolder(){
+        Path folder = browsersFolder.resolve(newFolderName(HexFormat.of().toHexDigits(ThreadLocalRandom.current().nextInt())));
+        try {
+            Files.createDirectories(folder.resolve(DOWNLOAD_FOLDER_NAME));
+        }
+        catch (IOException e){
+            throw new RuntimeException("ブラウザのフォルダを作成できませんでした。"+folder, e);
+        }
+        activeFolders.add(folder);
+        return folder;
+    }
+
+    /**
+     * ブラウザを終了したので、ブラウザのフォルダを削除できるようにする。
+     * @param folder createBrowserFolder()で作成したフォルダ
+     */
+    public void releaseBrowserFolder(Path folder){
+        if(null!=folder && activeFolders.remove(folder)){
+            cleanupAsync();
+        }
+    }
+
+    /**
+     * createBrowserFolder()で作成したフォルダか。
+     * @param folder
+     * @return
+     */
+    public boolean isBrowserFolder(Path folder){
+        return null!=folder && browsersFolder.equals(folder.getParent());
+    }
+
+    /**
+     * 作業フォルダ内のダウンロードフォルダ
+     * @param folder
+     * @return
+     */
+    public static Path getDownloadFolder(Path folder){
+        return folder.resolve(DOWNLOAD_FOLDER_NAME);
+    }
+
+    /**
+     * ブラウザのフォルダ内のプロファイル(--user-data-dir)のフォルダ
+     * @param browserFolder
+     * @return
+     */
+    public static Path getProfileFolder(Path browserFolder){
+        return browserFolder.resolve(PROFILE_FOLDER_NAME);
+    }
+
+    /**
+     * 作業フォルダの外側にある一時ファイルの領域(ダウンロードキャッシュ、チェックポイント、Seleniumのキャッシュ)
+     * @return 領域名とフォルダ
+     */
+    protected Map<String, Path> getSharedAreas(){
+        Path tmpFolder = root.getParent();
+        Map<String, Path> areas = new LinkedHashMap<>();
+        areas.put(AREA_DOWNLOAD_CACHE, tmpFolder.resolve(DownloadCache.CACHE_FOLDER_NAME));
+        areas.put(AREA_CHECKPOINT, tmpFolder.resolve(CheckpointStore.CHECKPOINT_FOLDER_NAME));
+        String seCachePath = CommonUtility.getEnv(ENV_SE_CACHE_PATH, "");
+        if(!seCachePath.isEmpty() && !Paths.get(seCachePath).toAbsolutePath().equals(tmpFolder.toAbsolutePath())){  ///tmp自体の場合は集計できない
+            areas.put(AREA_SELENIUM_CACHE, Paths.get(seCachePath));
+        }
+        return areas;
+    }
+
+    /**
+     * 領域毎の使用量を集計する。
+     * @return 領域名と使用量(bytes)
+     */
+    public Map<String, Long> getUsage(){
+        return getUsage(new HashSet<>());
+    }
+
+    /**
+     * DownloadCacheはキャッシュのファイルをダウンロードフォルダにハードリンクするので、同じファイルはキャッシュの領域でのみ数える。
+     * @param cacheFileKeys DownloadCacheの領域のファイルのfileKeyを追加する
+     * @return 領域名と使用量(bytes)
+     */
+    protected Map<String, Long> getUsage(Set<Object> cacheFileKeys){
+        Map<String, Path> sharedAreas = getSharedAreas();
+        long cacheSize = sizeOf(sharedAreas.get(AREA_DOWNLOAD_CACHE), cacheFileKeys);
+        Set<Object> countedFileKeys = new HashSet<>(cacheFileKeys);
+        Map<String, Long> usage = new LinkedHashMap<>();
+        usage.put(AREA_INVOCATIONS, sizeOf(invocationsFolder, countedFileKeys));
+        usage.put(AREA_BROWSERS, sizeOf(browsersFolder, countedFileKeys));
+        sharedAreas.forEach((area, folder) -> usage.put(area, AREA_DOWNLOAD_CACHE.equals(area) ? cacheSize : sizeOf(folder, countedFileKeys)));
+        return usage;
+    }
+
+    /**
+     * バックグラウンドでcleanup()を行う。既に予定している場合は何もしない。
+     */
+    public void cleanupAsync(){
+        if(cleanupPending.compareAndSet(false, true)){
+            cleanupExecutor.execute(() -> {
+                cleanupPending.set(false);
+                try {
+                    cleanup();
+                }
+                catch (RuntimeException e){
+                    logger.warn("作業フォルダの削除に失敗しました。{}", e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * 使用量が上限を超えている場合、使用中でないinvocation・ブラウザのフォルダと、Seleniumのキャッシュを更新日時の古いものから削除する。
+     * @return 削除後の使用量(bytes)
+     */
+    public synchronized long cleanup(){
+        long startNanos = System.nanoTime();
+        Set<Object> cacheFileKeys = new HashSet<>();
+        Map<String, Long> usage = getUsage(cacheFileKeys);
+        long total = usage.values().stream().mapToLong(Long::longValue).sum();
+        int deleted = 0;
+        if(total>quotaBytes){
+            List<Path> candidates = new ArrayList<>();
+            candidates.addAll(listChildren(invocationsFolder));
+            candidates.addAll(listChildren(browsersFolder));
+            Path seleniumCache = getSharedAreas().get(AREA_SELENIUM_CACHE);
+            if(null!=seleniumCache){
+                candidates.addAll(listChildren(seleniumCache));
+            }
+            candidates.removeAll(activeFolders);
+            Map<Path, Long> lastModified = new HashMap<>();
+            candidates.forEach(path -> lastModified.put(path, lastModifiedMillis(path)));
+            candidates.sort(Comparator.comparing(lastModified::get));
+            for(Path candidate : candidates){
+                if(total<=quotaBytes){
+                    break;
+                }
+                if(activeFolders.contains(candidate)){   //集計中に使用中になったもの
+                    continue;
+                }
+                long size = sizeOf(candidate, new HashSet<>(cacheFileKeys));   //キャッシュにリンクされたファイルは削除しても空かない
+                try {
+                    deleteRecursively(candidate);
+                    total -= size;
+                    deleted++;
+                    logger.debug("作業フォルダを削除しました[{}] {}bytes", candidate, size);
+                }
+                catch (IOException e){
+                    logger.warn("作業フォルダを削除できませんでした[{}] {}", candidate, e.getMessage());
+                }
+            }
+        }
+        logger.info("作業フォルダの使用量:{} 合計:{}bytes 上限:{}bytes 削除:{}件 {}ms", usage, total, quotaBytes, deleted, (System.nanoTime()-startNanos)/1_000_000);
+        return total;
+    }
+
+    protected static String newFolderName(String suffix){
+        String name = LocalDateTime.now().format(FOLDER_TIME);
+        if(null!=suffix && !suffix.isEmpty()){
+            name += "-"+suffix.replaceAll("[^A-Za-z0-9-]", "_");
+        }
+        return name;
+    }
+
+    protected static List<Path> listChildren(Path folder){
+        if(!Files.isDirectory(folder)){
+            return List.of();
+        }
+        try (Stream<Path> children = Files.list(folder)) {
+            return children.toList();
+        }
+        catch (IOException e){
+            logger.warn("フォルダを読み込めませんでした[{}] {}", folder, e.getMessage());
+            return List.of();
+        }
+    }
+
+    /**
+     * フォルダ内で最後に更新されたファイルの日時
+     */
+    protected static long lastModifiedMillis(Path path){
+        long[] latest = {0};
+        walk(path, (file, attributes) -> latest[0] = Math.max(latest[0], attributes.lastModifiedTime().toMillis()));
+        return latest[0];
+    }
+
+    /**
+     * ファイル、もしくはフォルダ内のファイルの合計サイズ。集計中に削除されたファイルは数えない。
+     * 同じファイルへのハードリンクは1回だけ数える。
+     */
+    public static long sizeOf(Path path){
+        return sizeOf(path, new HashSet<>());
+    }
+
+    /**
+     * @param path
+     * @param countedFileKeys 集計済みのファイルのfileKey。含まれるファイルは数えず、数えたファイルを追加する
+     * @return
+     */
+    public static long sizeOf(Path path, Set<Object> countedFileKeys){
+        long[] total = {0};
+        walk(path, (file, attributes) -> {
+            if(attributes.isRegularFile() && (null==attributes.fileKey() || countedFileKeys.add(attributes.fileKey()))){    //fileKeyがないファイルシステムでは重複を判定できない
+                total[0] += attributes.size();
+            }
+        });
+        return total[0];
+    }
+
+    private static void walk(Path path, BiConsumer<Path, BasicFileAttributes> visitor){
+        if(!Files.exists(path, LinkOption.NOFOLLOW_LINKS)){
+            return;
+        }
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    visitor.accept(dir, attributes);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    visitor.accept(file, attributes);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;    //ブラウザが書き換え中のファイルなど
+                }
+            });
+        }
+        catch (IOException e){
+            logger.debug("フォルダを集計できませんでした[{}] {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * ファイル、もしくはフォルダを中身ごと削除する。シンボリックリンクはリンク先をたどらない。
+     * @param path
+     * @throws IOException
+     */
+    public static void deleteRecursively(Path path) throws IOException {
+        if(!Files.exists(path, LinkOption.NOFOLLOW_LINKS)){
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if(e instanceof NoSuchFileException){
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if(null!=e && !(e instanceof NoSuchFileException)){
+                    throw e;
+                }
+                Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -1,12 +1,17 @@
 package greenflagproject.selenium.common;
 
 import org.openqa.selenium.chrome.ChromeOptions;
+import org.openqa.selenium.logging.LogType;
+import org.openqa.selenium.logging.LoggingPreferences;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 
 /**
  * https://note.com/ai_tarou/n/n1b6469adec17
@@ -22,6 +27,23 @@ public class WuChromeOptions extends ChromeOptions {
         return downloadFolderPath;
     }
 
+    /**
+     * Linuxで--user-data-dirに指定するプロファイルのフォルダ。
+     * ダウンロードフォルダがWorkspaceManagerのブラウザのフォルダ内にある場合はそのprofileフォルダ、それ以外は/tmp。
+     */
+    protected String profileFolderPath;
+    public String getProfileFolderPath(){
+        return profileFolderPath;
+    }
+
+    /**
+     * 別のホストで起動するブラウザ用のオプションの場合はtrue
+     */
+    protected final boolean remote;
+    public boolean isRemote(){
+        return remote;
+    }
+
     public WuChromeOptions() {
         this(false);
     }
@@ -30,17 +52,43 @@ public class WuChromeOptions extends ChromeOptions {
         this(WebSiteControlDriver.createTmpDownloadFolder(), headlessMode);
     }
     public WuChromeOptions(String downloadFolderPath, boolean headlessMode){
-        setDriver();
-        setBinary();
+        this(downloadFolderPath, headlessMode, false);
+    }
+
+    /**
+     * @param downloadFolderPath
+     * @param headlessMode
+     * @param remote trueの場合はSelenium Gridなど別のホストで起動するブラウザ用に、このホストのファイル
+     *               (chromedriver、ブラウザのバイナリ、プロファイル、ダウンロードフォルダ)と--single-processを指定しない。
+     *               downloadFolderPathはHttpFileDownloaderで保存するこのホストのフォルダとしてのみ使う。
+     */
+    protected WuChromeOptions(String downloadFolderPath, boolean headlessMode, boolean remote){
+        this.remote = remote;
+        if(!remote) {
+            setDriver();
+            setBinary();
+            profileFolderPath = toProfileFolderPath(downloadFolderPath);
+        }
 
         setHeadlesMode(headlessMode);
         setStandardOptions();
         setSslOptions();
         setIgnoreRobotOptions();
-        setOsOptions(headlessMode);
+        if(!remote) {
+            setOsOptions(headlessMode);
+        }
         setExperimentalOptions(downloadFolderPath);
     }
 
+    /**
+     * RemoteWebDriverでセッションを作成する場合のオプション。
+     * @param headlessMode
+     * @return
+     */
+    public static WuChromeOptions forRemote(boolean headlessMode){
+        return new WuChromeOptions(WebSiteControlDriver.createTmpDownloadFolder(), headlessMode, true);
+    }
+
     public ChromeOptions setBinary(){
         String s =System.getenv("WEBDRIVER_CHROME_BINARY");
         if(s!=null && !s.isEmpty()) {
@@ -64,7 +112,7 @@ public class WuChromeOptions extends ChromeOptions {
             chromeDriverPath=DEFAULT_WEBDRIVER_CHROME_DRIVER;
         }
         else {
-            throw new RuntimeException("Chrome driver path couldn't get.");
+            chromeDriverPath=System.getProperty(SYSTEM_PROPERTY_KEY_WEBDRIVER_CHROME_DRIVER);    //2回目以降の作成(ブラウザの起動し直しなど)では、1回目に設定した値を使う
         }
 
         if(null!=chromeDriverPath && !chromeDriverPath.isEmpty()) {
@@ -79,6 +127,10 @@ public class WuChromeOptions extends ChromeOptions {
     protected void setStandardOptions(){
         addArguments("--lang=ja-JP");   //Webサイトに日本語判定してもらうための設定
         addArguments("--disable-popup-blocking");
+
+        LoggingPreferences loggingPreferences = new LoggingPreferences();
+        loggingPreferences.enable(LogType.BROWSER, Level.WARNING);  //DiagnosticsCollectorで失敗時のコンソールログを取得するため
+        setCapability(ChromeOptions.LOGGING_PREFS, loggingPreferences);
     }
 
     protected void setSslOptions(){
@@ -98,16 +150,45 @@ public class WuChromeOptions extends ChromeOptions {
         prefs.put("profile.default_content_settings.popups", 0);
         if(downloadFolderPath!=null && !downloadFolderPath.isEmpty()) {
             this.downloadFolderPath=downloadFolderPath;
-            prefs.put("download.default_directory", downloadFolderPath);
+            if(!remote) {
+                prefs.put("download.default_directory", downloadFolderPath);
+            }
         }
         prefs.put("safebrowsing.enabled", true);                                    // 安全ブラウジングを無効化
         prefs.put("profile.default_content_setting_values.automatic_downloads", 1); // 自動ダウンロードを許可
         prefs.put("download.prompt_for_download", false);
-//        prefs.put("profile.managed_default_content_settings.images", 2);          // 画像読み込みしない←動作しなかったのでコメントアウト
-//        prefs.put("profile.default_content_setting_values.images", 2);            // 画像読み込みしない←動作しなかったのでコメントアウト
+        // 画像などの読み込み制限はprefsでは動作しなかったので、WebSiteControlDriver.applyResourcePolicy()でDevToolsを使って行う
         setExperimentalOption("prefs", prefs);
     }
 
+    /**
+     * /tmpの直下をプロファイルにすると、warm containerでブラウザを起動し直すたびにプロファイルのファイルが/tmpに残り続けるため、
+     * ブラウザ毎のフォルダに分けてWorkspaceManagerで削除できるようにする。
+     * @param downloadFolderPath
+     * @return
+     */
+    protected static String toProfileFolderPath(String downloadFolderPath){
+        if(null!=downloadFolderPath && !downloadFolderPath.isEmpty()){
+            Path browserFolder = Paths.get(downloadFolderPath).getParent();
+            if(WorkspaceManager.getInstance().isBrowserFolder(browserFolder)){
+                return WorkspaceManager.getProfileFolder(browserFolder).toString();
+            }
+        }
+        return "/tmp";
+    }
+
+    /**
+     * プロファイルのテンプレート(PROFILE_TEMPLATE_PATH)がある場合、ブラウザ毎のプロファイルのフォルダにコピーする。
+     * ブラウザの起動前に呼び出す。コピーの時間はStartupMetricsのProfileCopyとして、BrowserOptionsとは別に記録する。
+     * /tmpの直下をプロファイルにする場合(Linux以外で--user-data-dirを指定しない場合を含む)は、他のファイルと混ざるのでコピーしない。
+     */
+    public void prepareProfileFolder(){
+        ProfileTemplate template = ProfileTemplate.fromEnv();
+        if(null!=template && null!=profileFolderPath && !"/tmp".equals(profileFolderPath) && "Linux".equals(System.getProperty("os.name"))){
+            StartupMetrics.time(StartupMetrics.PHASE_PROFILE_COPY, () -> template.copyTo(Paths.get(profileFolderPath)));
+        }
+    }
+
     protected void setHeadlesMode(boolean headlessMode){
         logger.info("setHeadlesMode:{}", headlessMode);
         if(headlessMode){
@@ -116,7 +197,9 @@ public class WuChromeOptions extends ChromeOptions {
             addArguments("--no-sandbox");
             addArguments("--disable-dev-shm-usage");    //This is frequently caused by incorrect permissions on /dev/shm.  Try 'sudo chmod 1777 /dev/shm' to fix.
 
-            addArguments("--single-process");               //AWS動作に必須
+            if(!remote) {
+                addArguments("--single-process");           //AWS動作に必須(Lambdaで起動する場合)
+            }
 
 //            addArguments("--remote-debugging-pipe");      //なくてもAWS動作可能   //In this mode DevToolsActivePort is not used.
 //            addArguments("--disable-application-cache");  //なくてもAWS動作可能
@@ -129,7 +212,7 @@ public class WuChromeOptions extends ChromeOptions {
         String osName =System.getProperty("os.name");
         if (osName.equals("Linux")) {
             logger.info("setOsOptions(Linux)");
-            addArguments("--user-data-dir=/tmp");       //Macで開発時に実行する場合につけると動かないが、AWS Lambda稼働させるために付けたオプション
+            addArguments("--user-data-dir="+profileFolderPath);       //Macで開発時に実行する場合につけると動かないが、AWS Lambda稼働させるために付けたオプション
         }
         else if(osName.equals("Mac OS X")){
             logger.info("setOsOptions(Mac OS X)");